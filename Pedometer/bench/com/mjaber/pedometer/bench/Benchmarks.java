@@ -0,0 +1,670 @@
+package com.mjaber.pedometer.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.math.BigDecimal;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+import com.mjaber.pedometer.CadenceDetector;
+import com.mjaber.pedometer.EventBus;
+import com.mjaber.pedometer.GeoMath;
+import com.mjaber.pedometer.Pedometer;
+import com.mjaber.pedometer.StepDetector;
+import com.mjaber.pedometer.logger.DataLogger;
+import com.mjaber.pedometer.logger.GPXWriter;
+import com.mjaber.pedometer.logger.LocationRing;
+import com.mjaber.pedometer.logger.TrackLog;
+import com.mjaber.pedometer.logger.TrackStore;
+import com.mjaber.pedometer.services.OrientationFilter;
+import com.mjaber.pedometer.services.OrientationMath;
+
+/**
+ * Micro benchmarks of the hot paths, reporting ns/op and bytes allocated per
+ * op. They run on a desktop JVM against the classes in src, which only touch
+ * Android for logging on error paths:
+ *
+ * <pre>
+ * javac -cp android.jar -sourcepath src:bench -d out bench/com/mjaber/pedometer/bench/Benchmarks.java
+ * java -cp out com.mjaber.pedometer.bench.Benchmarks [name filter | accuracy]
+ * </pre>
+ *
+ * @author Mustafa Jaber 'mstfajbr@gmail.com'
+ *
+ */
+public class Benchmarks {
+
+	private static final int WARMUP_ITERATIONS = 5;
+	private static final int ITERATIONS = 10;
+
+	// keeps the JIT from dropping the measured code
+	static volatile long sink;
+
+	/**
+	 * One measured operation repeated ops times per iteration
+	 */
+	public static abstract class Benchmark {
+
+		final String name;
+		final int ops;
+
+		// bytes allocated by threads other than the measuring one
+		long otherThreadsAllocated;
+
+		Benchmark(String name, int ops) {
+			this.name = name;
+			this.ops = ops;
+		}
+
+		void setUp() {
+		}
+
+		/**
+		 * called before every iteration, not measured
+		 */
+		void beforeIteration() {
+		}
+
+		/**
+		 * run the operation ops times
+		 *
+		 * @return a checksum of the results
+		 */
+		abstract long run() throws Exception;
+
+		void tearDown() {
+		}
+	}
+
+	/**
+	 * StepDetector.update() per sample, of the Pedometer or the
+	 * CadenceDetector
+	 */
+	static class PedometerUpdate extends Benchmark {
+
+		private final WalkingData data;
+		private final boolean cadence;
+		private StepDetector meter;
+
+		PedometerUpdate(String name, WalkingData data, boolean cadence) {
+			super(name, data.size());
+			this.data = data;
+			this.cadence = cadence;
+		}
+
+		@Override
+		void beforeIteration() {
+			meter = newDetector(cadence);
+		}
+
+		@Override
+		long run() {
+			StepDetector meter = this.meter;
+			float[] x = data.x, y = data.y, z = data.z;
+			long[] timestamps = data.timestamps;
+
+			for (int i = 0; i < ops; i++) {
+				meter.setXdat(x[i]);
+				meter.setYdat(y[i]);
+				meter.setZdat(z[i]);
+				meter.setTimestamp(timestamps[i]);
+				meter.update();
+			}
+
+			return meter.getSteps();
+		}
+	}
+
+	/**
+	 * heading from an accelerometer and a magnetic field reading, through the
+	 * rotation matrix or the quaternion filter
+	 */
+	static class Heading extends Benchmark {
+
+		private final boolean filter;
+
+		private float[][] gravity;
+		private float[][] geomagnetic;
+
+		private final float[] rotation = new float[9];
+		private final float[] orientation = new float[3];
+		private OrientationFilter orientationFilter;
+
+		Heading(String name, int ops, boolean filter) {
+			super(name, ops);
+			this.filter = filter;
+		}
+
+		@Override
+		void setUp() {
+			WalkingData data = WalkingData.walking(ops, 5);
+			Random random = new Random(5);
+
+			gravity = new float[ops][];
+			geomagnetic = new float[ops][];
+			for (int i = 0; i < ops; i++) {
+				// the raw readings, 9.8 added back to z
+				gravity[i] = new float[] { data.x[i], data.y[i],
+						data.z[i] + 9.8f };
+				geomagnetic[i] = new float[] {
+						(float) (5.0 + random.nextGaussian()),
+						(float) (20.0 + random.nextGaussian()),
+						(float) (-40.0 + random.nextGaussian()) };
+			}
+		}
+
+		@Override
+		void beforeIteration() {
+			orientationFilter = new OrientationFilter();
+		}
+
+		@Override
+		long run() {
+			double heading = 0;
+
+			if (filter) {
+				OrientationFilter orientationFilter = this.orientationFilter;
+				for (int i = 0; i < ops; i++) {
+					orientationFilter.correct(gravity[i], geomagnetic[i],
+							0.02f);
+					heading += orientationFilter.getHeading();
+				}
+			} else {
+				for (int i = 0; i < ops; i++) {
+					if (OrientationMath.getRotationMatrix(rotation,
+							gravity[i], geomagnetic[i]))
+						OrientationMath.getOrientation(rotation, orientation);
+					heading += orientation[0];
+				}
+			}
+
+			return (long) heading;
+		}
+
+		@Override
+		void tearDown() {
+			gravity = null;
+			geomagnetic = null;
+		}
+	}
+
+	/**
+	 * OrientationFilter.rotate by a gyroscope sample
+	 */
+	static class Rotate extends Benchmark {
+
+		private OrientationFilter orientationFilter;
+
+		Rotate(int ops) {
+			super("OrientationFilter.rotate", ops);
+		}
+
+		@Override
+		void beforeIteration() {
+			orientationFilter = new OrientationFilter();
+			orientationFilter.correct(new float[] { 0.0f, 9.8f, 0.0f },
+					new float[] { 5.0f, 20.0f, -40.0f }, 0.0f);
+		}
+
+		@Override
+		long run() {
+			OrientationFilter orientationFilter = this.orientationFilter;
+			for (int i = 0; i < ops; i++)
+				orientationFilter.rotate(0.01f, (i & 15) * 0.01f, -0.02f,
+						0.02f);
+			return (long) orientationFilter.getHeading();
+		}
+	}
+
+	/**
+	 * Distance between consecutive track points: GeoMath.haversine,
+	 * GeoMath.distance or a GeoMath.Odometer fed the whole track
+	 */
+	static class Distance extends Benchmark {
+
+		static final int HAVERSINE = 0;
+		static final int DISTANCE = 1;
+		static final int ODOMETER = 2;
+
+		private final int method;
+
+		private double[] latitudes;
+		private double[] longitudes;
+
+		Distance(String name, int ops, int method) {
+			super(name, ops);
+			this.method = method;
+		}
+
+		@Override
+		void setUp() {
+			TrackStore track = WalkingData.track(ops + 1, 7);
+			latitudes = new double[ops + 1];
+			longitudes = new double[ops + 1];
+			for (int i = 0; i <= ops; i++) {
+				latitudes[i] = track.getLatitude(i);
+				longitudes[i] = track.getLongitude(i);
+			}
+		}
+
+		@Override
+		long run() {
+			double distance = 0;
+
+			switch (method) {
+			case HAVERSINE:
+				for (int i = 0; i < ops; i++)
+					distance += GeoMath.haversine(latitudes[i], longitudes[i],
+							latitudes[i + 1], longitudes[i + 1]);
+				break;
+			case DISTANCE:
+				for (int i = 0; i < ops; i++)
+					distance += GeoMath.distance(latitudes[i], longitudes[i],
+							latitudes[i + 1], longitudes[i + 1]);
+				break;
+			default:
+				GeoMath.Odometer odometer = new GeoMath.Odometer();
+				for (int i = 0; i <= ops; i++)
+					odometer.add(latitudes[i], longitudes[i]);
+				distance = odometer.getTotal();
+			}
+
+			return (long) distance;
+		}
+	}
+
+	/**
+	 * EventBus.publish of a step to one subscriber on the publishing thread
+	 */
+	static class Publish extends Benchmark {
+
+		private long steps;
+
+		private final EventBus.Subscriber<EventBus.Step> subscriber =
+				new EventBus.Subscriber<EventBus.Step>() {
+			@Override
+			public void onEvent(EventBus.Step event) {
+				steps += event.getSteps();
+			}
+		};
+
+		Publish(int ops) {
+			super("EventBus.publish", ops);
+		}
+
+		@Override
+		void setUp() {
+			EventBus.getInstance().subscribe(EventBus.Step.class, subscriber,
+					null);
+		}
+
+		@Override
+		long run() {
+			EventBus bus = EventBus.getInstance();
+			for (int i = 0; i < ops; i++)
+				bus.publish(new EventBus.Step(i, i));
+			return steps;
+		}
+
+		@Override
+		void tearDown() {
+			EventBus.getInstance().unsubscribe(subscriber);
+		}
+	}
+
+	/**
+	 * LocationRing.offer of a location from one or several threads at once,
+	 * the measuring thread drains the ring whenever it is full
+	 */
+	static class Offer extends Benchmark {
+
+		private final int threads;
+		private final LocationRing ring = new LocationRing(1024);
+
+		private long sum;
+
+		private final LocationRing.Consumer consumer = new LocationRing.Consumer() {
+			@Override
+			public void onLocation(double longitude, double latitude,
+					double altitude, long time) {
+				sum += time;
+			}
+		};
+
+		Offer(String name, int ops, int threads) {
+			super(name, ops);
+			this.threads = threads;
+		}
+
+		@Override
+		long run() throws InterruptedException {
+			Thread[] producers = new Thread[threads - 1];
+			for (int t = 0; t < producers.length; t++) {
+				producers[t] = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						offer(ops / threads, false);
+					}
+				});
+				producers[t].start();
+			}
+
+			offer(ops / threads, true);
+
+			// the other producers may still wait for room
+			for (Thread producer : producers) {
+				while (producer.isAlive()) {
+					synchronized (this) {
+						ring.drain(consumer);
+					}
+					Thread.yield();
+				}
+				producer.join();
+			}
+
+			synchronized (this) {
+				ring.drain(consumer);
+			}
+			return sum;
+		}
+
+		private void offer(int count, boolean drain) {
+			for (int i = 0; i < count; i++) {
+				while (!ring.offer(11.576124, 48.137154, 520.0, i)) {
+					if (drain) {
+						synchronized (this) {
+							ring.drain(consumer);
+						}
+					} else {
+						Thread.yield();
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * DataLogger.addLocation from one or several threads at once
+	 */
+	static class AddLocation extends Benchmark {
+
+		private final int threads;
+
+		AddLocation(String name, int ops, int threads) {
+			super(name, ops);
+			this.threads = threads;
+		}
+
+		@Override
+		void beforeIteration() {
+			DataLogger.getInstance().reset();
+		}
+
+		@Override
+		long run() throws InterruptedException {
+			if (threads == 1)
+				return add(ops);
+
+			final CountDownLatch start = new CountDownLatch(1);
+			final CountDownLatch done = new CountDownLatch(threads);
+			final long[] allocated = new long[threads];
+
+			for (int t = 0; t < threads; t++) {
+				final int index = t;
+				new Thread(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							start.await();
+						} catch (InterruptedException e) {
+							return;
+						}
+						long before = allocatedBytes();
+						add(ops / threads);
+						allocated[index] = allocatedBytes() - before;
+						done.countDown();
+					}
+				}).start();
+			}
+
+			start.countDown();
+			done.await();
+
+			otherThreadsAllocated = 0;
+			for (long bytes : allocated)
+				otherThreadsAllocated += bytes;
+
+			// the consumer has to catch up before the ops are done
+			DataLogger.getInstance().flush();
+			return DataLogger.getInstance().getCounter();
+		}
+
+		private static long add(int count) {
+			DataLogger logger = DataLogger.getInstance();
+			for (int i = 0; i < count; i++)
+				logger.addLocation(11.576124 + i * 1e-6, 48.137154, 520.0, i);
+			logger.flush();
+			return logger.getCounter();
+		}
+
+		@Override
+		void tearDown() {
+			DataLogger.getInstance().reset();
+		}
+	}
+
+	/**
+	 * GPXWriter.write of a whole track into a writer that drops the output,
+	 * the track is in memory or spilled to segment files but the last chunks
+	 */
+	static class WriteGPX extends Benchmark {
+
+		private final int points;
+		private final boolean spilled;
+		private TrackLog track;
+
+		WriteGPX(int points, boolean spilled) {
+			super("GPXWriter.write/" + (spilled ? "spilled/" : "") + points, 1);
+			this.points = points;
+			this.spilled = spilled;
+		}
+
+		@Override
+		void setUp() {
+			File dir = spilled ? new File(System.getProperty("java.io.tmpdir"),
+					"pedometer-bench") : null;
+			track = new TrackLog(dir, spilled ? 0 : Integer.MAX_VALUE);
+
+			TrackStore store = WalkingData.track(points, 11);
+			TrackStore.Cursor point = store.cursor();
+			while (point.moveToNext())
+				track.add(point.getLongitude(), point.getLatitude(),
+						point.getAltitude(), point.getTime());
+		}
+
+		@Override
+		long run() throws IOException {
+			CountingWriter out = new CountingWriter();
+			GPXWriter.write(track, out);
+			return out.count;
+		}
+
+		@Override
+		void tearDown() {
+			track.clear();
+			track = null;
+		}
+	}
+
+	/**
+	 * Writer counting the characters instead of storing them
+	 */
+	static class CountingWriter extends Writer {
+
+		long count;
+
+		@Override
+		public void write(char[] buffer, int offset, int length) {
+			count += length;
+		}
+
+		@Override
+		public void write(String text) {
+			count += text.length();
+		}
+
+		@Override
+		public void flush() {
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+
+	static StepDetector newDetector(boolean cadence) {
+		return cadence ? new CadenceDetector() : new Pedometer();
+	}
+
+	/**
+	 * steps counted by both step engines on walks at fixed cadences, against
+	 * the steps actually walked
+	 */
+	static void accuracy() {
+		double[] cadences = { 0.8, 1.2, 1.6, 2.0, 2.4, 2.8, 3.2 };
+
+		System.out.println(String.format("%-16s %8s %10s %10s %10s",
+				"cadence (Hz)", "walked", "Pedometer", "Cadence", "cadence"));
+
+		for (double cadence : cadences) {
+			WalkingData data = WalkingData.walking(60 * WalkingData.SAMPLE_RATE_HZ,
+					cadence, 3);
+
+			StepDetector pedometer = newDetector(false);
+			StepDetector detector = newDetector(true);
+			pedometer.update(data.x, data.y, data.z, data.timestamps, data.size());
+			detector.update(data.x, data.y, data.z, data.timestamps, data.size());
+
+			System.out.println(String.format("%-16.1f %8d %10d %10d %10.2f",
+					cadence, data.steps, pedometer.getSteps(),
+					detector.getSteps(), detector.getCadence()));
+		}
+	}
+
+	/**
+	 * total length of a track of a million points summed in plain doubles and
+	 * by a GeoMath.Odometer, against an exact sum of the same hops
+	 */
+	static void totals() {
+		TrackStore track = WalkingData.track(1000000, 7);
+
+		double plain = 0;
+		BigDecimal exact = BigDecimal.ZERO;
+		GeoMath.Odometer odometer = new GeoMath.Odometer();
+
+		odometer.add(track.getLatitude(0), track.getLongitude(0));
+
+		for (int i = 1; i < track.size(); i++) {
+			double hop = odometer.add(track.getLatitude(i),
+					track.getLongitude(i));
+			plain += hop;
+			exact = exact.add(new BigDecimal(hop));
+		}
+
+		double reference = exact.doubleValue();
+
+		System.out.println(String.format("%-16s %20s %12s", "total",
+				"meters", "error"));
+		System.out.println(String.format("%-16s %20.9f %12.3e", "plain", plain,
+				plain - reference));
+		System.out.println(String.format("%-16s %20.9f %12.3e", "compensated",
+				odometer.getTotal(), odometer.getTotal() - reference));
+	}
+
+	static long allocatedBytes() {
+		return ((com.sun.management.ThreadMXBean) ManagementFactory
+				.getThreadMXBean()).getThreadAllocatedBytes(Thread
+				.currentThread().getId());
+	}
+
+	static Benchmark[] benchmarks() {
+		// contended callers, the GPS and the sensor thread at least
+		int threads = Math.max(4, Runtime.getRuntime().availableProcessors());
+
+		return new Benchmark[] {
+				new PedometerUpdate("Pedometer.update/walking",
+						WalkingData.walking(1000000, 1), false),
+				new PedometerUpdate("Pedometer.update/still",
+						WalkingData.still(1000000, 2), false),
+				new PedometerUpdate("CadenceDetector.update/walking",
+						WalkingData.walking(1000000, 1), true),
+				new PedometerUpdate("CadenceDetector.update/still",
+						WalkingData.still(1000000, 2), true),
+				new Heading("OrientationMath.heading", 1000000, false),
+				new Heading("OrientationFilter.correct", 1000000, true),
+				new Rotate(1000000),
+				new Distance("GeoMath.haversine", 1000000, Distance.HAVERSINE),
+				new Distance("GeoMath.distance", 1000000, Distance.DISTANCE),
+				new Distance("GeoMath.Odometer.add", 1000000, Distance.ODOMETER),
+				new Publish(1000000),
+				new Offer("LocationRing.offer/1 thread", 1000000, 1),
+				new Offer("LocationRing.offer/" + threads + " threads", 1000000,
+						threads),
+				new AddLocation("DataLogger.addLocation/1 thread", 200000, 1),
+				new AddLocation("DataLogger.addLocation/" + threads
+						+ " threads", 200000, threads),
+				new WriteGPX(1000, false),
+				new WriteGPX(100000, false),
+				new WriteGPX(1000000, false),
+				new WriteGPX(1000000, true) };
+	}
+
+	static void measure(Benchmark benchmark) throws Exception {
+		benchmark.setUp();
+
+		for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+			benchmark.beforeIteration();
+			sink += benchmark.run();
+		}
+
+		double bestNanos = Double.MAX_VALUE;
+		double totalBytes = 0;
+
+		for (int i = 0; i < ITERATIONS; i++) {
+			benchmark.beforeIteration();
+			benchmark.otherThreadsAllocated = 0;
+
+			long allocated = allocatedBytes();
+			long start = System.nanoTime();
+			sink += benchmark.run();
+			long nanos = System.nanoTime() - start;
+			allocated = allocatedBytes() - allocated
+					+ benchmark.otherThreadsAllocated;
+
+			bestNanos = Math.min(bestNanos, (double) nanos / benchmark.ops);
+			totalBytes += (double) allocated / benchmark.ops;
+		}
+
+		benchmark.tearDown();
+
+		System.out.println(String.format("%-40s %14.1f ns/op %14.1f B/op",
+				benchmark.name, bestNanos, totalBytes / ITERATIONS));
+	}
+
+	public static void main(String[] args) throws Exception {
+		String filter = args.length > 0 ? args[0] : "";
+
+		if (filter.equals("accuracy")) {
+			accuracy();
+			totals();
+			return;
+		}
+
+		for (Benchmark benchmark : benchmarks()) {
+			if (benchmark.name.contains(filter))
+				measure(benchmark);
+		}
+	}
+}
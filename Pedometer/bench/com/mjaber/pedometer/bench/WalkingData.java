@@ -0,0 +1,137 @@
+package com.mjaber.pedometer.bench;
+
+import java.util.Random;
+
+import com.mjaber.pedometer.logger.TrackStore;
+
+/**
+ * Synthetic but realistic sensor data of a person walking, generated from a
+ * fixed seed so every run sees the same samples
+ *
+ * @author Mustafa Jaber 'mstfajbr@gmail.com'
+ *
+ */
+public class WalkingData {
+
+	// accelerometer rate of SENSOR_DELAY_GAME
+	public static final int SAMPLE_RATE_HZ = 50;
+
+	// standard gravity as the DeadReckoningService takes it off z
+	private static final double GRAVITY = 9.8;
+
+	// steps per second of a normal walk
+	public static final double CADENCE_HZ = 1.8;
+
+	public final float[] x;
+	public final float[] y;
+	public final float[] z;
+	public final long[] timestamps;
+
+	// number of steps walked in the samples
+	public int steps;
+
+	private WalkingData(int count) {
+		x = new float[count];
+		y = new float[count];
+		z = new float[count];
+		timestamps = new long[count];
+	}
+
+	public int size() {
+		return x.length;
+	}
+
+	/**
+	 * accelerometer samples of a walk with the phone upright in a trouser
+	 * pocket, 9.8 already taken off z the way the DeadReckoningService does it
+	 */
+	public static WalkingData walking(int count, long seed) {
+		return walking(count, CADENCE_HZ, 0.002, seed);
+	}
+
+	/**
+	 * accelerometer samples of a walk at a fixed cadence in steps per second
+	 */
+	public static WalkingData walking(int count, double cadence, long seed) {
+		return walking(count, cadence, 0.0, seed);
+	}
+
+	private static WalkingData walking(int count, double cadence,
+			double drift, long seed) {
+
+		Random random = new Random(seed);
+		WalkingData data = new WalkingData(count);
+
+		double phase = 0;
+		double minCadence = Math.min(cadence, 1.4);
+		double maxCadence = Math.max(cadence, 2.2);
+
+		for (int i = 0; i < count; i++) {
+			// cadence drifts slowly between 1.4 and 2.2 steps per second
+			cadence += random.nextGaussian() * drift;
+			cadence = Math.max(minCadence, Math.min(maxCadence, cadence));
+			phase += 2 * Math.PI * cadence / SAMPLE_RATE_HZ;
+
+			// vertical bounce, forward surge a quarter step behind it and a
+			// sideways sway once per stride
+			double bounce = Math.sin(phase);
+			double surge = Math.cos(phase);
+			double sway = Math.sin(phase / 2);
+
+			// gravity is on y when the phone is upright
+			data.x[i] = (float) (0.8 * sway + 0.3 * random.nextGaussian());
+			data.y[i] = (float) (GRAVITY + 3.0 * bounce + 0.4 * random
+					.nextGaussian());
+			data.z[i] = (float) (1.2 * surge + 0.3 * random.nextGaussian()
+					- GRAVITY);
+			data.timestamps[i] = i * (1000000000L / SAMPLE_RATE_HZ);
+		}
+
+		// one bounce per step
+		data.steps = (int) (phase / (2 * Math.PI));
+
+		return data;
+	}
+
+	/**
+	 * accelerometer samples of a phone lying still, only sensor noise
+	 */
+	public static WalkingData still(int count, long seed) {
+		Random random = new Random(seed);
+		WalkingData data = new WalkingData(count);
+
+		for (int i = 0; i < count; i++) {
+			data.x[i] = (float) (0.02 * random.nextGaussian());
+			data.y[i] = (float) (0.02 * random.nextGaussian());
+			data.z[i] = (float) (0.02 * random.nextGaussian());
+			data.timestamps[i] = i * (1000000000L / SAMPLE_RATE_HZ);
+		}
+
+		return data;
+	}
+
+	/**
+	 * a GPS track of a walk at 1Hz, about 1.3 meters between the points
+	 */
+	public static TrackStore track(int count, long seed) {
+		Random random = new Random(seed);
+		TrackStore track = new TrackStore(count);
+
+		double latitude = 48.137154;
+		double longitude = 11.576124;
+		double heading = random.nextDouble() * 2 * Math.PI;
+		long time = 1400000000000L;
+
+		for (int i = 0; i < count; i++) {
+			heading += random.nextGaussian() * 0.05;
+			latitude += 1.3 * Math.cos(heading) / 111320.0;
+			longitude += 1.3 * Math.sin(heading)
+					/ (111320.0 * Math.cos(Math.toRadians(latitude)));
+
+			track.add(longitude, latitude, 520 + random.nextGaussian(), time);
+			time += 1000;
+		}
+
+		return track;
+	}
+}
@@ -1,38 +1,76 @@
-package com.mjaber.pedometer;
-
-/**
- * 
- * @author Mustafa Jaber 'mstfajbr@gmail.com'
- *
- */
-public class Application extends android.app.Application {
-
-	// Debuggin Tag
-	public static final String APPTAG = "Pedometer";
-
-	// Sensors Constants
-	public static final String SENSOR = "SENSOR";
-	public static final String GPS = "GPS";
-	public static final String ACCELEROMETER = "ACCELEROMETER";
-	
-	// ID constanct used by a broadcast receiver to switch between sensors
-	public static final String SENSORSWITCHID = "com.mjaber.pedometer.SensorSwitchReceiver";
-	
-	// ID constanct used by a broadcast receiver to retrieve sensors' data
-	public static final String SENSORSUPDATEID = "com.mjaber.pedometer.SensorUpdateReceiver";
-	public static final String START = "START";
-	public static final String STOP = "STOP";
-
-	// minTime minimum time interval between location updates, in milliseconds
-	public static final long MIN_TIME_MS = 1000 * 1;// one second
-	
-	// minDistance minimum distance between location updates, in meters
-	public static final float MIN_DISTANCE_IN_MTS = 0; // one meter
-	
-
-	@Override
-	public void onCreate() {
-		super.onCreate();
-	}
-
-}
+package com.mjaber.pedometer;
+
+/**
+ * 
+ * @author Mustafa Jaber 'mstfajbr@gmail.com'
+ *
+ */
+public class Application extends android.app.Application {
+
+	// Debuggin Tag
+	public static final String APPTAG = "Pedometer";
+
+	// Sensors Constants
+	public static final String GPS = "GPS";
+	public static final String ACCELEROMETER = "ACCELEROMETER";
+
+	// actions for the sensors of the dead reckoning on a source change
+	public static final String START = "START";
+	public static final String STOP = "STOP";
+
+	// minTime minimum time interval between location updates, in milliseconds
+	public static final long MIN_TIME_MS = 1000 * 1;// one second
+	
+	// minDistance minimum distance between location updates, in meters
+	public static final float MIN_DISTANCE_IN_MTS = 0; // one meter
+
+	// maximum time the sensor hub may hold accelerometer samples in its FIFO
+	// before delivering them as a batch, in microseconds, 0 disables batching
+	public static final int SENSOR_BATCH_LATENCY_US = 1000 * 1000; // one second
+
+	// record the raw sensor events and location fixes for an offline replay
+	public static final boolean RAW_SENSOR_RECORDING = false;
+
+	// count steps with the frequency domain CadenceDetector instead of the
+	// threshold based Pedometer
+	public static final boolean CADENCE_STEP_DETECTOR = false;
+
+	// take the steps from the hardware step detector or step counter when
+	// the device has one, the Pedometer counts them otherwise
+	public static final boolean HARDWARE_STEP_DETECTION = true;
+
+	// take the heading from the quaternion complementary filter instead of
+	// the rotation matrix of every reading
+	public static final boolean QUATERNION_ORIENTATION = true;
+
+	// rotate the quaternion filter with the gyroscope, it draws more power
+	// than the accelerometer and the magnetic field sensor together
+	public static final boolean GYROSCOPE_ORIENTATION = false;
+
+	// process the sensor events on a thread of their own, the listener only
+	// queues them
+	public static final boolean SENSOR_THREAD = true;
+
+	// number of sensor events the queue to the sensor thread holds
+	public static final int SENSOR_QUEUE_CAPACITY = 1024;
+
+	// fuse the steps and the GPS fixes into one position and distance, the
+	// sensors of the dead reckoning run all the time instead of only while
+	// the GPS is lost
+	public static final boolean POSITION_FUSION = true;
+
+	// adapt the GPS update interval to the movement, only with the fusion,
+	// the steps have to carry the position between the fixes
+	public static final boolean ADAPTIVE_GPS_INTERVAL = true;
+
+	// memory the logged track may take in bytes, the oldest points beyond
+	// it are spilled to segment files, 32 bytes per point
+	public static final int TRACK_MEMORY_BUDGET = 1024 * 1024;
+	
+
+	@Override
+	public void onCreate() {
+		super.onCreate();
+	}
+
+}
@@ -0,0 +1,447 @@
+package com.mjaber.pedometer;
+
+/**
+ * Step detection in the frequency domain. The magnitude of the acceleration
+ * runs through a sliding DFT over the last WINDOW_SIZE samples, restricted to
+ * the bins between MIN_CADENCE and MAX_CADENCE. The strongest bin is the
+ * cadence, and the steps are counted by integrating the cadence over time
+ * while the signal is periodic enough to be a walk.
+ *
+ * Every sample costs a fixed number of multiply-adds per bin and nothing is
+ * allocated after construction. The bins are picked from the sample rate seen
+ * in the first RATE_SAMPLES samples after a reset or a change of the rate.
+ * No cadence is known until the window is full, the steps walked until then
+ * are credited from the first cadence, one per sample. After a change of the
+ * rate the steps go on at the cadence from before until the new window is
+ * full.
+ *
+ * @author Mustafa Jaber 'mstfajbr@gmail.com'
+ *
+ */
+public class CadenceDetector implements StepDetector {
+
+	// number of samples in the sliding window, a power of two
+	private static final int WINDOW_SIZE = 256;
+	private static final int WINDOW_MASK = WINDOW_SIZE - 1;
+
+	// range of cadences in steps per second that are searched
+	private static final double MIN_CADENCE = 0.6;
+	private static final double MAX_CADENCE = 3.5;
+
+	// upper bound of the bins between MIN_CADENCE and MAX_CADENCE, every bin
+	// up to half the sample rate, so the whole range is searched at any rate
+	// that can resolve it. Above half the sample rate, e.g. 2.5Hz at
+	// SENSOR_DELAY_NORMAL, the cadences can't be seen.
+	private static final int MAX_BINS = WINDOW_SIZE / 2;
+
+	// samples used to measure the sample rate before the DFT starts
+	private static final int RATE_SAMPLES = 16;
+
+	// sample period assumed when there are no timestamps, 50Hz
+	private static final double DEFAULT_PERIOD = 0.02;
+
+	// damping of the sliding DFT, keeps round-off errors from accumulating
+	private static final double DAMPING = 0.99995;
+
+	// share of the window energy the cadence bin must hold to be a walk
+	private static final double MIN_PERIODICITY = 0.25;
+
+	// number of the latest samples the stillness is judged on
+	private static final int STILL_WINDOW = 16;
+
+	// variance of the magnitude in (m/s^2)^2 below which the phone doesn't
+	// move, over STILL_WINDOW for the stillness and over the whole window
+	// for the walk
+	private static final double STILL_VARIANCE = 0.05;
+
+	// time the variance has to stay below STILL_VARIANCE, in nanoseconds
+	private static final long STILL_TIME_NS = 3 * 1000000000L;
+
+	// values of accelerometer
+	private double xdat, ydat, zdat;
+	private long timestamp;
+
+	// records every sample when set, null when tracing is off
+	private StepTrace trace;
+
+	// the last WINDOW_SIZE magnitudes
+	private final double[] window = new double[WINDOW_SIZE];
+	private int position;
+	private int filled;
+
+	// running sums of the magnitudes in the window and of their squares
+	private double sum;
+	private double sumOfSquares;
+
+	// the same sums over the latest STILL_WINDOW magnitudes
+	private double stillSum;
+	private double stillSquares;
+
+	// timestamp since when the variance is below STILL_VARIANCE, -1 while
+	// the phone moves
+	private long stillSince;
+	private boolean still;
+
+	// DAMPING ^ WINDOW_SIZE, weight of the sample leaving the window
+	private final double dampingN = Math.pow(DAMPING, WINDOW_SIZE);
+
+	// DFT bins, the twiddle factor of each and its real and imaginary part
+	private int firstBin;
+	private int bins;
+	private final double[] twiddleRe = new double[MAX_BINS];
+	private final double[] twiddleIm = new double[MAX_BINS];
+	private final double[] binRe = new double[MAX_BINS];
+	private final double[] binIm = new double[MAX_BINS];
+
+	// sample period in seconds, measured over the first samples
+	private double period;
+	private long firstTimestamp;
+
+	// true until the first full window, the steps walked while the window
+	// filled are credited then
+	private boolean filling;
+	private long lastTimestamp;
+	private int rateSamples;
+
+	// cadence in steps per second and the fraction of a step walked so far
+	private double cadence;
+	private double stepPhase;
+
+	private int steps;
+	private boolean isStepChanged;
+	private long stepTimestamp;
+
+	// magnitude and periodicity of the last sample, for the trace
+	private double magnitude;
+	private double periodicity;
+
+	public CadenceDetector() {
+		reset();
+	}
+
+	@Override
+	public void reset() {
+		for (int i = 0; i < WINDOW_SIZE; i++)
+			window[i] = 0.0;
+		for (int i = 0; i < MAX_BINS; i++) {
+			binRe[i] = 0.0;
+			binIm[i] = 0.0;
+		}
+
+		position = 0;
+		filled = 0;
+		sum = 0.0;
+		sumOfSquares = 0.0;
+		stillSum = 0.0;
+		stillSquares = 0.0;
+		stillSince = -1;
+		still = false;
+		bins = 0;
+		period = 0.0;
+		rateSamples = 0;
+		filling = true;
+		cadence = 0.0;
+		stepPhase = 0.0;
+		periodicity = 0.0;
+	}
+
+	/**
+	 * measure the rate again and restart the DFT, the window would mix the
+	 * two rates otherwise. The latest magnitudes stay in the window for the
+	 * stillness, and a walk goes on at its cadence until the new window is
+	 * full, the steps of a still phone are credited then instead.
+	 */
+	@Override
+	public void onRateChanged() {
+		for (int i = 0; i < MAX_BINS; i++) {
+			binRe[i] = 0.0;
+			binIm[i] = 0.0;
+		}
+
+		filled = 0;
+		sum = 0.0;
+		sumOfSquares = 0.0;
+		bins = 0;
+		period = 0.0;
+		rateSamples = 0;
+		periodicity = 0.0;
+
+		if (still) {
+			cadence = 0.0;
+			stepPhase = 0.0;
+		}
+		filling = cadence == 0.0;
+	}
+
+	@Override
+	public void update() {
+		magnitude = Math.sqrt(xdat * xdat + ydat * ydat + zdat * zdat);
+
+		isStepChanged = updateMagnitude(magnitude);
+	}
+
+	@Override
+	public int update(float[] x, float[] y, float[] z, long[] timestamps,
+			int count) {
+		return update(x, y, z, timestamps, count, null);
+	}
+
+	@Override
+	public int update(float[] x, float[] y, float[] z, long[] timestamps,
+			int count, int[] stepIndices) {
+
+		int detected = 0;
+
+		for (int i = 0; i < count; i++) {
+			double xi = x[i], yi = y[i], zi = z[i];
+
+			timestamp = timestamps[i];
+			magnitude = Math.sqrt(xi * xi + yi * yi + zi * zi);
+
+			isStepChanged = updateMagnitude(magnitude);
+			if (isStepChanged) {
+				if (stepIndices != null)
+					stepIndices[detected] = i;
+				detected++;
+			}
+		}
+
+		return detected;
+	}
+
+	private boolean updateMagnitude(double magnitude) {
+
+		long elapsed = timestamp - lastTimestamp;
+		lastTimestamp = timestamp;
+
+		if (bins == 0) {
+			measureRate();
+			return carry(elapsed);
+		}
+
+		// slide the window, the magnitudes from before a change of the rate
+		// were never added
+		double oldest = filled < WINDOW_SIZE ? 0.0 : window[position];
+		double leaving = window[(position - STILL_WINDOW) & WINDOW_MASK];
+		window[position] = magnitude;
+		position = (position + 1) & WINDOW_MASK;
+
+		sum += magnitude - oldest;
+		sumOfSquares += magnitude * magnitude - oldest * oldest;
+
+		stillSum += magnitude - leaving;
+		stillSquares += magnitude * magnitude - leaving * leaving;
+		updateStillness();
+
+		double delta = magnitude - dampingN * oldest;
+
+		double peak = 0.0;
+		int peakBin = -1;
+
+		for (int b = 0; b < bins; b++) {
+			double re = binRe[b] + delta;
+			double im = binIm[b];
+
+			re = twiddleRe[b] * re - twiddleIm[b] * im;
+			im = twiddleIm[b] * (binRe[b] + delta) + twiddleRe[b] * im;
+
+			binRe[b] = re;
+			binIm[b] = im;
+
+			double power = re * re + im * im;
+			if (power > peak) {
+				peak = power;
+				peakBin = b;
+			}
+		}
+
+		if (filled < WINDOW_SIZE) {
+			filled++;
+			return carry(elapsed);
+		}
+
+		double mean = sum / WINDOW_SIZE;
+		double variance = sumOfSquares / WINDOW_SIZE - mean * mean;
+
+		// a sinusoid puts N^2 * variance / 2 into its bin
+		periodicity = variance > 0.0 ? peak
+				/ (WINDOW_SIZE * WINDOW_SIZE * variance / 2) : 0.0;
+
+		boolean credit = filling;
+		filling = false;
+
+		if (variance < STILL_VARIANCE || periodicity < MIN_PERIODICITY) {
+			cadence = 0.0;
+			stepPhase = 0.0;
+			traceSample(false);
+			return false;
+		}
+
+		cadence = (firstBin + peakBin + interpolate(peakBin))
+				/ (WINDOW_SIZE * period);
+
+		// a walk filled the window, its steps up to the last sample are due
+		if (credit)
+			stepPhase += cadence * (timestamp - elapsed - firstTimestamp)
+					* 1e-9;
+
+		boolean step = advance(elapsed > 0 ? elapsed * 1e-9 : period);
+
+		traceSample(step);
+		return step;
+	}
+
+	/**
+	 * walk on at the cadence from before a change of the rate while the new
+	 * window fills, nothing after a reset or once the phone is still
+	 */
+	private boolean carry(long elapsed) {
+		if (still)
+			cadence = 0.0;
+		if (cadence == 0.0 || elapsed <= 0)
+			return false;
+
+		return advance(elapsed * 1e-9);
+	}
+
+	/**
+	 * add the time to the fraction of a step walked, a step at most per
+	 * sample
+	 */
+	private boolean advance(double dt) {
+		stepPhase += cadence * dt;
+		if (stepPhase < 1.0)
+			return false;
+
+		stepPhase -= 1.0;
+		steps++;
+		stepTimestamp = timestamp;
+		return true;
+	}
+
+	/**
+	 * the phone is still once the variance of the latest magnitudes stayed
+	 * below STILL_VARIANCE for STILL_TIME_NS
+	 */
+	private void updateStillness() {
+		double mean = stillSum / STILL_WINDOW;
+		double variance = stillSquares / STILL_WINDOW - mean * mean;
+
+		if (variance >= STILL_VARIANCE) {
+			stillSince = -1;
+			still = false;
+		} else if (stillSince < 0) {
+			stillSince = timestamp;
+		} else {
+			still = timestamp - stillSince >= STILL_TIME_NS;
+		}
+	}
+
+	/**
+	 * measure the sample period and set up the bins once enough samples were
+	 * seen
+	 */
+	private void measureRate() {
+		if (rateSamples == 0)
+			firstTimestamp = timestamp;
+
+		if (++rateSamples < RATE_SAMPLES)
+			return;
+
+		period = (timestamp - firstTimestamp) * 1e-9 / (RATE_SAMPLES - 1);
+		if (period <= 0.0)
+			period = DEFAULT_PERIOD;
+
+		double resolution = 1.0 / (WINDOW_SIZE * period);
+		firstBin = Math.max(1, (int) Math.floor(MIN_CADENCE / resolution));
+		int lastBin = Math.min(WINDOW_SIZE / 2,
+				(int) Math.ceil(MAX_CADENCE / resolution));
+		bins = Math.max(1, Math.min(MAX_BINS, lastBin - firstBin + 1));
+
+		for (int b = 0; b < bins; b++) {
+			double angle = 2 * Math.PI * (firstBin + b) / WINDOW_SIZE;
+			twiddleRe[b] = DAMPING * Math.cos(angle);
+			twiddleIm[b] = DAMPING * Math.sin(angle);
+		}
+	}
+
+	/**
+	 * offset of the true peak from the peak bin, from a parabola through the
+	 * bin and its neighbours
+	 */
+	private double interpolate(int peakBin) {
+		if (peakBin <= 0 || peakBin >= bins - 1)
+			return 0.0;
+
+		double left = Math.sqrt(binRe[peakBin - 1] * binRe[peakBin - 1]
+				+ binIm[peakBin - 1] * binIm[peakBin - 1]);
+		double center = Math.sqrt(binRe[peakBin] * binRe[peakBin]
+				+ binIm[peakBin] * binIm[peakBin]);
+		double right = Math.sqrt(binRe[peakBin + 1] * binRe[peakBin + 1]
+				+ binIm[peakBin + 1] * binIm[peakBin + 1]);
+
+		double denominator = left - 2 * center + right;
+		return denominator != 0.0 ? 0.5 * (left - right) / denominator : 0.0;
+	}
+
+	private void traceSample(boolean step) {
+		if (trace != null)
+			trace.sample(timestamp, magnitude, cadence, periodicity, 0, 0,
+					step);
+	}
+
+	@Override
+	public boolean isStepChanged() {
+		return isStepChanged;
+	}
+
+	@Override
+	public int getSteps() {
+		return steps;
+	}
+
+	@Override
+	public long getStepTimestamp() {
+		return stepTimestamp;
+	}
+
+	@Override
+	public boolean isStill() {
+		return still;
+	}
+
+	@Override
+	public double getCadence() {
+		return cadence;
+	}
+
+	@Override
+	public void setXdat(double xdat) {
+		this.xdat = xdat;
+	}
+
+	@Override
+	public void setYdat(double ydat) {
+		this.ydat = ydat;
+	}
+
+	@Override
+	public void setZdat(double zdat) {
+		this.zdat = zdat;
+	}
+
+	@Override
+	public void setTimestamp(long timestamp) {
+		this.timestamp = timestamp;
+	}
+
+	@Override
+	public StepTrace getTrace() {
+		return trace;
+	}
+
+	@Override
+	public void setTrace(StepTrace trace) {
+		this.trace = trace;
+	}
+}
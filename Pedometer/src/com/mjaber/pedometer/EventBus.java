@@ -0,0 +1,265 @@
+package com.mjaber.pedometer;
+
+import java.io.PrintWriter;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Delivers events between the services and the activity of the process,
+ * without going through the system like a broadcast does. Subscribers choose
+ * the type of the events they get and where they get them: on the thread
+ * publishing the event, or on the thread behind an Executor, e.g. a
+ * {@link HandlerExecutor}.
+ *
+ * Publishing takes a map lookup and a walk over the subscribers of the
+ * type. Every delivery records the time since the event was created, per
+ * subscriber, dump() prints them.
+ *
+ * @author Mustafa Jaber 'mstfajbr@gmail.com'
+ *
+ */
+public final class EventBus {
+
+	private static final EventBus instance = new EventBus();
+
+	/**
+	 * Base of all events, it remembers when it was created
+	 */
+	public abstract static class Event {
+
+		private final long postTime = System.nanoTime();
+
+		/**
+		 * System.nanoTime() when the event was created
+		 */
+		public long getPostTime() {
+			return postTime;
+		}
+	}
+
+	/**
+	 * The GPS or the ACCELEROMETER became the data source
+	 */
+	public static final class SourceChanged extends Event {
+
+		private final String sensor;
+		private final String action;
+
+		/**
+		 * @param sensor
+		 *            Application.GPS or Application.ACCELEROMETER
+		 * @param action
+		 *            Application.START or Application.STOP for the sensors of
+		 *            the dead reckoning
+		 */
+		public SourceChanged(String sensor, String action) {
+			this.sensor = sensor;
+			this.action = action;
+		}
+
+		public String getSensor() {
+			return sensor;
+		}
+
+		public String getAction() {
+			return action;
+		}
+	}
+
+	/**
+	 * The dead reckoning counted a step
+	 */
+	public static final class Step extends Event {
+
+		private final int steps;
+		private final long timestamp;
+
+		public Step(int steps, long timestamp) {
+			this.steps = steps;
+			this.timestamp = timestamp;
+		}
+
+		/**
+		 * the steps counted since the service started
+		 */
+		public int getSteps() {
+			return steps;
+		}
+
+		/**
+		 * the sensor timestamp of the step in nanoseconds
+		 */
+		public long getTimestamp() {
+			return timestamp;
+		}
+	}
+
+	/**
+	 * A GPX file was written, or writing it failed
+	 */
+	public static final class ExportFinished extends Event {
+
+		private final String path;
+		private final boolean success;
+
+		public ExportFinished(String path, boolean success) {
+			this.path = path;
+			this.success = success;
+		}
+
+		public String getPath() {
+			return path;
+		}
+
+		public boolean isSuccess() {
+			return success;
+		}
+	}
+
+	/**
+	 * Receives the events of one type
+	 */
+	public interface Subscriber<E extends Event> {
+		void onEvent(E event);
+	}
+
+	/**
+	 * A subscriber with its executor and its delivery latencies
+	 */
+	private static final class Subscription<E extends Event> {
+
+		private final Class<E> type;
+		private final Subscriber<? super E> subscriber;
+
+		// null to deliver on the publishing thread
+		private final Executor executor;
+
+		// deliveries and their latencies in nanoseconds, without an executor
+		// every publishing thread delivers, so the counters are atomic
+		private final AtomicLong deliveries = new AtomicLong();
+		private final AtomicLong totalLatency = new AtomicLong();
+		private final AtomicLong maxLatency = new AtomicLong();
+
+		Subscription(Class<E> type, Subscriber<? super E> subscriber,
+				Executor executor) {
+			this.type = type;
+			this.subscriber = subscriber;
+			this.executor = executor;
+		}
+
+		void dispatch(final E event) {
+			if (executor == null) {
+				deliver(event);
+				return;
+			}
+
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					deliver(event);
+				}
+			});
+		}
+
+		void deliver(E event) {
+			long latency = System.nanoTime() - event.getPostTime();
+
+			deliveries.incrementAndGet();
+			totalLatency.addAndGet(latency);
+
+			long max = maxLatency.get();
+			while (latency > max && !maxLatency.compareAndSet(max, latency))
+				max = maxLatency.get();
+
+			subscriber.onEvent(event);
+		}
+	}
+
+	// the subscriptions by event type
+	private final ConcurrentHashMap<Class<?>, List<Subscription<?>>> subscriptions =
+			new ConcurrentHashMap<Class<?>, List<Subscription<?>>>();
+
+	public static EventBus getInstance() {
+		return instance;
+	}
+
+	/**
+	 * deliver the events of the type to the subscriber
+	 *
+	 * @param executor
+	 *            runs the deliveries, null to deliver on the thread
+	 *            publishing the event
+	 */
+	public <E extends Event> void subscribe(Class<E> type,
+			Subscriber<? super E> subscriber, Executor executor) {
+		getSubscriptions(type).add(
+				new Subscription<E>(type, subscriber, executor));
+	}
+
+	/**
+	 * stop delivering events to the subscriber, deliveries already handed to
+	 * its executor still happen
+	 */
+	public void unsubscribe(Subscriber<?> subscriber) {
+		for (List<Subscription<?>> list : subscriptions.values()) {
+			for (Subscription<?> subscription : list) {
+				if (subscription.subscriber == subscriber)
+					list.remove(subscription);
+			}
+		}
+	}
+
+	/**
+	 * true when events of the type are delivered anywhere, publishers of
+	 * frequent events check it before creating one
+	 */
+	public boolean hasSubscribers(Class<? extends Event> type) {
+		List<Subscription<?>> list = subscriptions.get(type);
+		return list != null && !list.isEmpty();
+	}
+
+	/**
+	 * hand the event to the subscribers of its type
+	 */
+	@SuppressWarnings("unchecked")
+	public <E extends Event> void publish(E event) {
+		List<Subscription<?>> list = subscriptions.get(event.getClass());
+		if (list == null)
+			return;
+
+		for (Subscription<?> subscription : list)
+			((Subscription<E>) subscription).dispatch(event);
+	}
+
+	private List<Subscription<?>> getSubscriptions(Class<?> type) {
+		List<Subscription<?>> list = subscriptions.get(type);
+		if (list == null) {
+			subscriptions.putIfAbsent(type,
+					new CopyOnWriteArrayList<Subscription<?>>());
+			list = subscriptions.get(type);
+		}
+		return list;
+	}
+
+	/**
+	 * print the deliveries and their latencies per subscriber
+	 */
+	public void dump(PrintWriter writer) {
+		for (List<Subscription<?>> list : subscriptions.values()) {
+			for (Subscription<?> subscription : list) {
+				long deliveries = subscription.deliveries.get();
+				long average = deliveries > 0 ? subscription.totalLatency
+						.get() / deliveries : 0;
+
+				writer.println(subscription.type.getSimpleName() + " -> "
+						+ subscription.subscriber.getClass().getName() + ": "
+						+ deliveries + " deliveries, latency avg "
+						+ average / 1000 + "us, max "
+						+ subscription.maxLatency.get() / 1000 + "us");
+			}
+		}
+	}
+}
@@ -0,0 +1,189 @@
+package com.mjaber.pedometer;
+
+/**
+ * Distances on the earth, taken as a sphere with the quadratic mean radius.
+ *
+ * Short hops use the equirectangular approximation, a square root and no
+ * trigonometry once the cosine of the latitude is known. Against haversine
+ * its relative error stays below 4e-8 for hops up to 1 km and below 4e-6 up
+ * to FAST_PATH_METERS (10 km), anywhere up to 80 degrees of latitude; longer
+ * hops fall back to haversine.
+ *
+ * @author Mustafa Jaber 'mstfajbr@gmail.com'
+ *
+ */
+public final class GeoMath {
+
+	// Constant Earth Radius in meters(Ellipsoidal Quadratic Mean Radius)
+	public static final double EARTH_RADIUS = 6372800;
+
+	// longest hop in meters measured with the equirectangular approximation
+	public static final double FAST_PATH_METERS = 10000;
+
+	private static final double FAST_PATH_RADIANS = FAST_PATH_METERS
+			/ EARTH_RADIUS;
+
+	// latitude change in radians after which an Odometer computes the cosine
+	// of its reference latitude again, about 640 meters
+	private static final double REFERENCE_RADIANS = 1e-4;
+
+	private GeoMath() {
+	}
+
+	/**
+	 * Haversine function to get distance between two coordinate points
+	 */
+	public static double haversine(double lat1, double lon1, double lat2,
+			double lon2) {
+
+		double dLat = Math.toRadians(lat2 - lat1);
+		double dLon = Math.toRadians(lon2 - lon1);
+		lat1 = Math.toRadians(lat1);
+		lat2 = Math.toRadians(lat2);
+		double a = Math.sin(dLat / 2) * Math.sin(dLat / 2) + Math.sin(dLon / 2)
+				* Math.sin(dLon / 2) * Math.cos(lat1) * Math.cos(lat2);
+		double c = 2 * Math.asin(Math.sqrt(a));
+		return EARTH_RADIUS * c;
+	}
+
+	/**
+	 * distance in meters between two points, equirectangular for short hops
+	 * and haversine for long ones
+	 */
+	public static double distance(double lat1, double lon1, double lat2,
+			double lon2) {
+		double cosLatitude = Math.cos(Math.toRadians((lat1 + lat2) / 2));
+
+		return distance(lat1, lon1, lat2, lon2, cosLatitude);
+	}
+
+	/**
+	 * distance with the cosine of the mean latitude given
+	 */
+	private static double distance(double lat1, double lon1, double lat2,
+			double lon2, double cosLatitude) {
+		double x = Math.toRadians(lon2 - lon1) * cosLatitude;
+		double y = Math.toRadians(lat2 - lat1);
+		double squared = x * x + y * y;
+
+		if (squared < FAST_PATH_RADIANS * FAST_PATH_RADIANS)
+			return EARTH_RADIUS * Math.sqrt(squared);
+
+		return haversine(lat1, lon1, lat2, lon2);
+	}
+
+	/**
+	 * Running total with Kahan compensation, the rounding error of every
+	 * addition is carried into the next one, so a million small distances
+	 * add up to the same total as an exact sum
+	 */
+	public static final class KahanSum {
+
+		private double sum;
+		private double compensation;
+
+		public void add(double value) {
+			double y = value - compensation;
+			double t = sum + y;
+			compensation = (t - sum) - y;
+			sum = t;
+		}
+
+		/**
+		 * start over from value, setting the current total again keeps the
+		 * compensation
+		 */
+		public void set(double value) {
+			if (value == sum)
+				return;
+
+			sum = value;
+			compensation = 0.0;
+		}
+
+		public double get() {
+			return sum;
+		}
+	}
+
+	/**
+	 * Length of a track fed point by point. The cosine and sine of a
+	 * reference latitude are kept, and the cosine of the mean latitude of
+	 * every hop is derived from them by a first order step until the track
+	 * moved REFERENCE_RADIANS away from it.
+	 */
+	public static final class Odometer {
+
+		private final KahanSum total = new KahanSum();
+
+		private boolean hasPoint = false;
+		private double latitude;
+		private double longitude;
+
+		// reference latitude in radians, its cosine and sine
+		private double reference;
+		private double cosReference;
+		private double sinReference;
+
+		/**
+		 * add the hop from the previous point to the total
+		 *
+		 * @return the length of the hop in meters, 0 for the first point
+		 */
+		public double add(double latitude, double longitude) {
+			if (!hasPoint) {
+				moveTo(latitude, longitude);
+				return 0.0;
+			}
+
+			double mean = Math.toRadians((this.latitude + latitude) / 2);
+			double offset = mean - reference;
+			if (offset > REFERENCE_RADIANS || offset < -REFERENCE_RADIANS) {
+				setReference(mean);
+				offset = 0.0;
+			}
+
+			double distance = distance(this.latitude, this.longitude,
+					latitude, longitude, cosReference - sinReference * offset);
+
+			this.latitude = latitude;
+			this.longitude = longitude;
+			total.add(distance);
+
+			return distance;
+		}
+
+		/**
+		 * continue from the given point without adding the hop to it
+		 */
+		public void moveTo(double latitude, double longitude) {
+			this.latitude = latitude;
+			this.longitude = longitude;
+
+			if (!hasPoint)
+				setReference(Math.toRadians(latitude));
+			hasPoint = true;
+		}
+
+		private void setReference(double reference) {
+			this.reference = reference;
+			cosReference = Math.cos(reference);
+			sinReference = Math.sin(reference);
+		}
+
+		/**
+		 * forget the previous point, the total is kept
+		 */
+		public void clearPoint() {
+			hasPoint = false;
+		}
+
+		public double getTotal() {
+			return total.get();
+		}
+
+		public void setTotal(double total) {
+			this.total.set(total);
+		}
+	}
+}
@@ -0,0 +1,25 @@
+package com.mjaber.pedometer;
+
+import java.util.concurrent.Executor;
+
+import android.os.Handler;
+
+/**
+ * Runs the deliveries of the {@link EventBus} on the thread of a Handler
+ *
+ * @author Mustafa Jaber 'mstfajbr@gmail.com'
+ *
+ */
+public class HandlerExecutor implements Executor {
+
+	private final Handler handler;
+
+	public HandlerExecutor(Handler handler) {
+		this.handler = handler;
+	}
+
+	@Override
+	public void execute(Runnable command) {
+		handler.post(command);
+	}
+}
@@ -1,211 +1,407 @@
-package com.mjaber.pedometer;
-
-import android.util.Log;
-
-/**
- * 
- * @author Mustafa Jaber 'mstfajbr@gmail.com'
- *
- */
-public class Pedometer {
-
-	// Debugging tag
-	private static final String TAG = "Pedometer";
-	
-	// Pedometer singleton
-	private static Pedometer instance;
-
-	// values of accelerometer
-	private double xdat, ydat, zdat;
-	
-	// counter for 50 acceleration values
-	int cycles;
-
-	// total number of cycles before detecting a step
-	int totalCycles;
-
-	// the length of the moving average filter
-	int AvgFilterLength;
-
-	// magnitude of XYZ accelerometer values
-	double magnitude;
-
-	// old average values
-	double oldavg;
-
-	// new average values
-	double newavg;
-
-	// threshold to update average values
-	double avgThreshold;
-
-	// a flag to initialize average values
-	int stepflag;
-
-	// array to store 50 values of acceleration for smoothing
-	double[] acceleration = new double[50];
-
-	// Max and Min avg values of acceleration to detect steps
-	double maxavg, minavg;
-
-	// Steps Counter
-	int steps;
-
-	// A flag to detect a step
-	boolean isStepChanged = false;
-
-	private Pedometer() {
-
-		// initialize the variables required to detect steps
-		stepflag = 2;
-		maxavg = -10000.0;
-		minavg = 10000.0;
-		oldavg = 0.0;
-		newavg = 0.0;
-		cycles = 0;
-		totalCycles = 0;
-		steps = 0;
-		AvgFilterLength = 8;
-		avgThreshold = 1.5;
-
-		Log.d(TAG, "Called Pedometer Constructor");
-	}
-	
-	public static Pedometer getInstance(){
-		if(instance == null)
-			instance = new Pedometer();
-		
-		return instance;
-	}
-	
-	/**
-	 * initialize the variables required to detect steps
-	 */
-	public void reset(){
-		
-		stepflag = 2;
-		maxavg = -10000.0;
-		minavg = 10000.0;
-		oldavg = 0.0;
-		newavg = 0.0;
-		cycles = 0;
-		totalCycles = 0;
-		AvgFilterLength = 8;
-		avgThreshold = 1.0;
-	
-		Log.d(TAG, "Called Pedometer Constructor");
-	}
-
-	public void update() {
-
-		// update average acceleration values after 8 cycles
-		if (totalCycles > 7) {
-			oldavg = newavg;
-			newavg -= acceleration[cycles - AvgFilterLength];
-		}
-
-		// update the magnitude of the accelerometer values
-		magnitude = (double) Math
-				.sqrt((xdat * xdat + ydat * ydat + zdat * zdat));
-
-		// update acceleration array
-		acceleration[cycles] = magnitude;
-
-		// check whether the average values along with the new magnitude value
-		// is bigger/less than the threshold value
-		newavg += magnitude;
-		if (Math.abs(newavg - oldavg) < avgThreshold)
-			newavg = oldavg;
-
-		totalCycles++;
-		cycles++;
-		cycles = cycles > 49 ? cycles = 8 : cycles;
-
-		if (totalCycles > 8) {
-			if (isStep(newavg, oldavg)) { // check if it's a step
-
-				this.steps++;
-
-				// update acceleration values, the idea here is to use moving
-				// average filter with a length of 8 steps
-				for (int i = 0; i < AvgFilterLength; i++)
-					acceleration[i] = acceleration[cycles + i - AvgFilterLength];
-
-				cycles = AvgFilterLength;
-				totalCycles = 0;
-
-				// a flag to be used for detecting a step
-				isStepChanged = true;
-			} else {
-				isStepChanged = false;
-			}
-		}
-
-		Log.d(TAG, "Called update");
-	}
-
-	private boolean isStep(double newavg, double oldavg) {
-
-		Log.d(TAG, "Called isStep");
-
-		// Initial phase, detect whether we are in the positive/negative part of
-		// the cycle/step
-		if (stepflag == 2) {
-			if (newavg > (oldavg + avgThreshold))
-				stepflag = 1;
-			if (newavg < (oldavg - avgThreshold))
-				stepflag = 0;
-			return false;
-		}
-
-		// check the positive part of the step, and detect a step if the old and
-		// new average values are in different halves of the cycle
-		if (stepflag == 1) {
-
-			// check if the old value is in an either half of the cycle, and the
-			// new average value is in the opposite direction
-			if ((maxavg > minavg) && (newavg > ((maxavg + minavg) / 2))
-					&& (oldavg < ((maxavg + minavg / 2))))
-				return true;
-
-			if (newavg < (oldavg - avgThreshold)) {
-				stepflag = 0;
-				if (oldavg > maxavg)
-					maxavg = oldavg; // update max average value
-			}
-			return false;
-		}
-
-		// detect the lower part of the cycle/step
-		if (stepflag == 0) {
-			if (newavg > (oldavg + avgThreshold)) {
-				stepflag = 1;
-				if (oldavg < minavg)
-					minavg = oldavg; // update min average value
-			}
-			return false;
-		}
-
-		return false;
-	}
-
-	public int getSteps() {
-		return steps;
-	}
-
-	public boolean isStepChanged() {
-		return isStepChanged;
-	}
-
-	public void setXdat(double xdat) {
-		this.xdat = xdat;
-	}
-
-	public void setYdat(double ydat) {
-		this.ydat = ydat;
-	}
-
-	public void setZdat(double zdat) {
-		this.zdat = zdat;
-	}
-}
+package com.mjaber.pedometer;
+
+/**
+ * 
+ * @author Mustafa Jaber 'mstfajbr@gmail.com'
+ *
+ */
+public class Pedometer implements StepDetector {
+
+	// size of the acceleration ring buffer, it has to be a power of two and
+	// bigger than the length of the moving average filter
+	private static final int BUFFER_SIZE = 16;
+
+	// mask used to wrap indices of the ring buffer
+	private static final int BUFFER_MASK = BUFFER_SIZE - 1;
+
+	// number of samples the bulk methods process per pass
+	private static final int CHUNK_SIZE = 256;
+
+	// variance of the magnitude in (m/s^2)^2 over the ring buffer below which
+	// the phone doesn't move
+	private static final double STILL_VARIANCE = 0.05;
+
+	// time the variance has to stay below STILL_VARIANCE, in nanoseconds
+	private static final long STILL_TIME_NS = 3 * 1000000000L;
+
+	// values of accelerometer
+	private double xdat, ydat, zdat;
+
+	// timestamp of the accelerometer values, only used by the trace
+	private long timestamp;
+
+	// records every sample when set, null when tracing is off
+	private StepTrace trace;
+	
+	// index of the next free slot in the acceleration ring buffer
+	int cycles;
+
+	// total number of cycles before detecting a step
+	int totalCycles;
+
+	// the length of the moving average filter
+	final int AvgFilterLength = 8;
+
+	// magnitude of XYZ accelerometer values
+	double magnitude;
+
+	// old average values
+	double oldavg;
+
+	// new average values
+	double newavg;
+
+	// threshold to update average values
+	double avgThreshold;
+
+	// a flag to initialize average values
+	int stepflag;
+
+	// ring buffer of the last acceleration values for smoothing
+	final double[] acceleration = new double[BUFFER_SIZE];
+
+	// Max and Min avg values of acceleration to detect steps
+	double maxavg, minavg;
+
+	// Steps Counter
+	int steps;
+
+	// A flag to detect a step
+	boolean isStepChanged = false;
+
+	// timestamp of the last step and the time since the one before
+	long stepTimestamp;
+	long stepInterval;
+
+	// running sums of the magnitudes in the ring buffer and of their squares
+	double magnitudeSum, magnitudeSquares;
+
+	// timestamp since when the variance is below STILL_VARIANCE, -1 while
+	// the phone moves
+	long stillSince = -1;
+
+	// true when the phone didn't move for STILL_TIME_NS
+	boolean still = false;
+
+	// magnitudes of the chunk processed by the bulk methods
+	private final double[] magnitudes = new double[CHUNK_SIZE];
+
+	public Pedometer() {
+
+		// initialize the variables required to detect steps
+		stepflag = 2;
+		maxavg = -10000.0;
+		minavg = 10000.0;
+		oldavg = 0.0;
+		newavg = 0.0;
+		cycles = 0;
+		totalCycles = 0;
+		steps = 0;
+		avgThreshold = 1.5;
+	}
+	
+	/**
+	 * initialize the variables required to detect steps
+	 */
+	public void reset(){
+		
+		stepflag = 2;
+		maxavg = -10000.0;
+		minavg = 10000.0;
+		oldavg = 0.0;
+		newavg = 0.0;
+		cycles = 0;
+		totalCycles = 0;
+		stepInterval = 0;
+		stillSince = -1;
+		still = false;
+		avgThreshold = 1.0;
+	}
+
+	/**
+	 * nothing to do, the moving average runs over samples whatever their rate
+	 */
+	public void onRateChanged() {
+	}
+
+	public void update() {
+
+		// update the magnitude of the accelerometer values
+		magnitude = Math.sqrt(xdat * xdat + ydat * ydat + zdat * zdat);
+
+		isStepChanged = updateMagnitude(magnitude);
+	}
+
+	/**
+	 * Bulk version of update() for samples delivered in batches. The first
+	 * count samples of the arrays are processed in order, exactly as if each
+	 * one went through setXdat/setYdat/setZdat and update().
+	 * 
+	 * @return the number of steps detected in the batch, isStepChanged()
+	 *         reflects the last sample and getStepTimestamp() the last step
+	 */
+	public int update(float[] x, float[] y, float[] z, long[] timestamps,
+			int count) {
+		return detectSteps(x, y, z, timestamps, count, null, null);
+	}
+
+	/**
+	 * bulk update storing the index of every step, see
+	 * {@link #detectSteps(float[], float[], float[], long[], int, int[], long[])}
+	 */
+	public int update(float[] x, float[] y, float[] z, long[] timestamps,
+			int count, int[] stepIndices) {
+		return detectSteps(x, y, z, timestamps, count, stepIndices, null);
+	}
+
+	/**
+	 * Run the first count samples of recorded accelerometer columns through
+	 * the step detection in one pass. The index and timestamp of every step
+	 * are stored in stepIndices and stepTimestamps, either may be null. Steps
+	 * beyond the length of the output arrays are counted but not stored.
+	 * 
+	 * @return the number of steps detected
+	 */
+	public int detectSteps(float[] x, float[] y, float[] z, long[] timestamps,
+			int count, int[] stepIndices, long[] stepTimestamps) {
+
+		int detected = 0;
+
+		for (int start = 0; start < count; start += CHUNK_SIZE) {
+			int length = Math.min(CHUNK_SIZE, count - start);
+
+			for (int i = 0; i < length; i++) {
+				double xi = x[start + i], yi = y[start + i], zi = z[start + i];
+				magnitudes[i] = Math.sqrt(xi * xi + yi * yi + zi * zi);
+			}
+
+			detected = detectChunk(timestamps, start, length, detected,
+					stepIndices, stepTimestamps);
+		}
+
+		return detected;
+	}
+
+	/**
+	 * double precision version of
+	 * {@link #detectSteps(float[], float[], float[], long[], int, int[], long[])}
+	 */
+	public int detectSteps(double[] x, double[] y, double[] z,
+			long[] timestamps, int count, int[] stepIndices,
+			long[] stepTimestamps) {
+
+		int detected = 0;
+
+		for (int start = 0; start < count; start += CHUNK_SIZE) {
+			int length = Math.min(CHUNK_SIZE, count - start);
+
+			for (int i = 0; i < length; i++) {
+				double xi = x[start + i], yi = y[start + i], zi = z[start + i];
+				magnitudes[i] = Math.sqrt(xi * xi + yi * yi + zi * zi);
+			}
+
+			detected = detectChunk(timestamps, start, length, detected,
+					stepIndices, stepTimestamps);
+		}
+
+		return detected;
+	}
+
+	/**
+	 * run the magnitudes of one chunk through the moving average filter, the
+	 * magnitudes are computed beforehand in a separate loop without branches
+	 * so the JIT can unroll and vectorize it
+	 */
+	private int detectChunk(long[] timestamps, int start, int length,
+			int detected, int[] stepIndices, long[] stepTimestamps) {
+
+		boolean step = false;
+
+		for (int i = 0; i < length; i++) {
+			timestamp = timestamps[start + i];
+			magnitude = magnitudes[i];
+
+			step = updateMagnitude(magnitude);
+			if (step) {
+				if (stepIndices != null && detected < stepIndices.length)
+					stepIndices[detected] = start + i;
+				if (stepTimestamps != null && detected < stepTimestamps.length)
+					stepTimestamps[detected] = timestamp;
+
+				detected++;
+			}
+		}
+
+		if (length > 0)
+			isStepChanged = step;
+
+		return detected;
+	}
+
+	/**
+	 * Feed one acceleration magnitude into the moving average filter, returns
+	 * true when it completes a step. The ring buffer keeps the last
+	 * AvgFilterLength values at fixed offsets from cycles, so nothing has to
+	 * be copied when a step is found.
+	 */
+	private boolean updateMagnitude(double magnitude) {
+
+		// update average acceleration values after 8 cycles
+		if (totalCycles > 7) {
+			oldavg = newavg;
+			newavg -= acceleration[(cycles - AvgFilterLength) & BUFFER_MASK];
+		}
+
+		// update acceleration ring buffer and its sums, the slot written last
+		// time around leaves the buffer
+		double oldest = acceleration[cycles & BUFFER_MASK];
+		acceleration[cycles & BUFFER_MASK] = magnitude;
+		magnitudeSum += magnitude - oldest;
+		magnitudeSquares += magnitude * magnitude - oldest * oldest;
+
+		updateStillness();
+
+		// check whether the average values along with the new magnitude value
+		// is bigger/less than the threshold value
+		newavg += magnitude;
+		if (Math.abs(newavg - oldavg) < avgThreshold)
+			newavg = oldavg;
+
+		totalCycles++;
+		cycles = (cycles + 1) & BUFFER_MASK;
+
+		int prevflag = stepflag;
+		boolean step = totalCycles > 8 && isStep(newavg, oldavg);
+
+		if (step) {
+
+			steps++;
+
+			stepInterval = timestamp - stepTimestamp;
+			stepTimestamp = timestamp;
+
+			// restart the cycle count, the moving average filter with a length
+			// of 8 steps keeps reading the ring buffer where it is
+			totalCycles = 0;
+		}
+
+		if (trace != null)
+			trace.sample(timestamp, magnitude, newavg, oldavg, prevflag,
+					stepflag, step);
+
+		return step;
+	}
+
+	/**
+	 * the phone is still once the variance of the magnitudes in the ring
+	 * buffer stayed below STILL_VARIANCE for STILL_TIME_NS, any sample above
+	 * it ends the stillness right away
+	 */
+	private void updateStillness() {
+		double mean = magnitudeSum / BUFFER_SIZE;
+		double variance = magnitudeSquares / BUFFER_SIZE - mean * mean;
+
+		if (variance >= STILL_VARIANCE) {
+			stillSince = -1;
+			still = false;
+		} else if (stillSince < 0) {
+			stillSince = timestamp;
+		} else {
+			still = timestamp - stillSince >= STILL_TIME_NS;
+		}
+	}
+
+	private boolean isStep(double newavg, double oldavg) {
+
+		// Initial phase, detect whether we are in the positive/negative part of
+		// the cycle/step
+		if (stepflag == 2) {
+			if (newavg > (oldavg + avgThreshold))
+				stepflag = 1;
+			if (newavg < (oldavg - avgThreshold))
+				stepflag = 0;
+			return false;
+		}
+
+		// check the positive part of the step, and detect a step if the old and
+		// new average values are in different halves of the cycle
+		if (stepflag == 1) {
+
+			// check if the old value is in an either half of the cycle, and the
+			// new average value is in the opposite direction
+			if ((maxavg > minavg) && (newavg > ((maxavg + minavg) / 2))
+					&& (oldavg < ((maxavg + minavg / 2))))
+				return true;
+
+			if (newavg < (oldavg - avgThreshold)) {
+				stepflag = 0;
+				if (oldavg > maxavg)
+					maxavg = oldavg; // update max average value
+			}
+			return false;
+		}
+
+		// detect the lower part of the cycle/step
+		if (stepflag == 0) {
+			if (newavg > (oldavg + avgThreshold)) {
+				stepflag = 1;
+				if (oldavg < minavg)
+					minavg = oldavg; // update min average value
+			}
+			return false;
+		}
+
+		return false;
+	}
+
+	public int getSteps() {
+		return steps;
+	}
+
+	public boolean isStepChanged() {
+		return isStepChanged;
+	}
+
+	public long getStepTimestamp() {
+		return stepTimestamp;
+	}
+
+	public boolean isStill() {
+		return still;
+	}
+
+	/**
+	 * cadence from the time between the last two steps, timestamps in
+	 * nanoseconds
+	 */
+	public double getCadence() {
+		return stepInterval > 0 ? 1e9 / stepInterval : 0.0;
+	}
+
+	public void setXdat(double xdat) {
+		this.xdat = xdat;
+	}
+
+	public void setYdat(double ydat) {
+		this.ydat = ydat;
+	}
+
+	public void setZdat(double zdat) {
+		this.zdat = zdat;
+	}
+
+	public void setTimestamp(long timestamp) {
+		this.timestamp = timestamp;
+	}
+
+	public StepTrace getTrace() {
+		return trace;
+	}
+
+	/**
+	 * start recording every sample into the given trace, null stops tracing
+	 */
+	public void setTrace(StepTrace trace) {
+		this.trace = trace;
+	}
+}
@@ -0,0 +1,81 @@
+package com.mjaber.pedometer;
+
+/**
+ * A step detection engine fed with accelerometer samples, either one at a
+ * time through the setters and update() or in batches
+ * 
+ * @author Mustafa Jaber 'mstfajbr@gmail.com'
+ *
+ */
+public interface StepDetector {
+
+	void setXdat(double xdat);
+
+	void setYdat(double ydat);
+
+	void setZdat(double zdat);
+
+	void setTimestamp(long timestamp);
+
+	/**
+	 * process the sample set through the setters
+	 */
+	void update();
+
+	/**
+	 * process the first count samples of the arrays in order
+	 * 
+	 * @return the number of steps detected
+	 */
+	int update(float[] x, float[] y, float[] z, long[] timestamps, int count);
+
+	/**
+	 * process the first count samples of the arrays in order and store the
+	 * index of every step in stepIndices, which has room for count steps
+	 *
+	 * @return the number of steps detected
+	 */
+	int update(float[] x, float[] y, float[] z, long[] timestamps, int count,
+			int[] stepIndices);
+
+	/**
+	 * @return true when the last sample completed a step
+	 */
+	boolean isStepChanged();
+
+	int getSteps();
+
+	/**
+	 * @return the timestamp of the last step
+	 */
+	long getStepTimestamp();
+
+	/**
+	 * @return the current cadence in steps per second, 0 when not walking
+	 */
+	double getCadence();
+
+	/**
+	 * @return true when the acceleration barely changed for a few seconds,
+	 *         the phone lies somewhere or the user stands still
+	 */
+	boolean isStill();
+
+	/**
+	 * start detecting from scratch, the step count is kept
+	 */
+	void reset();
+
+	/**
+	 * the samples come at a different rate from now on, the step count and
+	 * the stillness are kept
+	 */
+	void onRateChanged();
+
+	StepTrace getTrace();
+
+	/**
+	 * start recording every sample into the given trace, null stops tracing
+	 */
+	void setTrace(StepTrace trace);
+}
@@ -0,0 +1,144 @@
+package com.mjaber.pedometer;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+
+/**
+ * Fixed-size binary trace of the step detection, kept in a preallocated ring
+ * so the hot path never builds strings or calls into the log. A record is
+ * five longs: timestamp, magnitude, newavg, oldavg and a packed word with the
+ * record kind, the stepflag before and after the sample and the step bit.
+ *
+ * The ring is written by the sensor thread only, records being written while
+ * it is dumped may be torn.
+ *
+ * @author Mustafa Jaber 'mstfajbr@gmail.com'
+ *
+ */
+public class StepTrace {
+
+	// Record kinds
+	public static final int SAMPLE = 0;
+	public static final int ORIENTATION = 1;
+
+	// number of records kept by default, about 160 seconds at 50Hz
+	public static final int DEFAULT_CAPACITY = 8192;
+
+	// number of longs used by one record
+	private static final int RECORD_LONGS = 5;
+
+	// records, RECORD_LONGS consecutive values each
+	private final long[] records;
+
+	// mask used to wrap record indices, capacity - 1
+	private final int mask;
+
+	// total number of records written since the last clear
+	private long written;
+
+	public StepTrace() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * @param capacity
+	 *            number of records, rounded up to a power of two
+	 */
+	public StepTrace(int capacity) {
+		int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+		records = new long[size * RECORD_LONGS];
+		mask = size - 1;
+	}
+
+	/**
+	 * record one Pedometer sample, stepflag transitions are the records where
+	 * prevflag and stepflag differ
+	 */
+	public void sample(long timestamp, double magnitude, double newavg,
+			double oldavg, int prevflag, int stepflag, boolean step) {
+		write(SAMPLE, timestamp, magnitude, newavg, oldavg, prevflag,
+				stepflag, step);
+	}
+
+	/**
+	 * record an orientation update, azimuth in degrees
+	 */
+	public void orientation(long timestamp, double azimuth) {
+		write(ORIENTATION, timestamp, azimuth, 0.0, 0.0, 0, 0, false);
+	}
+
+	private void write(int kind, long timestamp, double value, double newavg,
+			double oldavg, int prevflag, int stepflag, boolean step) {
+		int offset = ((int) written & mask) * RECORD_LONGS;
+
+		records[offset] = timestamp;
+		records[offset + 1] = Double.doubleToRawLongBits(value);
+		records[offset + 2] = Double.doubleToRawLongBits(newavg);
+		records[offset + 3] = Double.doubleToRawLongBits(oldavg);
+		records[offset + 4] = kind | (prevflag & 0xff) << 8
+				| (stepflag & 0xff) << 16 | (step ? 1 << 24 : 0);
+
+		written++;
+	}
+
+	/**
+	 * number of records currently held in the ring
+	 */
+	public int size() {
+		return (int) Math.min(written, mask + 1);
+	}
+
+	public void clear() {
+		written = 0;
+	}
+
+	/**
+	 * print the records from the oldest to the newest, one line each
+	 */
+	public void dump(PrintWriter writer) {
+		long first = written - size();
+
+		writer.println("kind timestamp value newavg oldavg prevflag stepflag step");
+
+		for (long i = first; i < written; i++) {
+			int offset = ((int) i & mask) * RECORD_LONGS;
+			long packed = records[offset + 4];
+
+			writer.print((packed & 0xff) == SAMPLE ? "S " : "O ");
+			writer.print(records[offset]);
+			writer.print(' ');
+			writer.print(Double.longBitsToDouble(records[offset + 1]));
+			writer.print(' ');
+			writer.print(Double.longBitsToDouble(records[offset + 2]));
+			writer.print(' ');
+			writer.print(Double.longBitsToDouble(records[offset + 3]));
+			writer.print(' ');
+			writer.print((packed >> 8) & 0xff);
+			writer.print(' ');
+			writer.print((packed >> 16) & 0xff);
+			writer.print(' ');
+			writer.println((packed >> 24) & 1);
+		}
+	}
+
+	/**
+	 * write the records from the oldest to the newest in their binary form,
+	 * preceded by the number of records
+	 */
+	public void writeTo(OutputStream stream) throws IOException {
+		DataOutputStream out = new DataOutputStream(stream);
+		long first = written - size();
+
+		out.writeInt(size());
+
+		for (long i = first; i < written; i++) {
+			int offset = ((int) i & mask) * RECORD_LONGS;
+			for (int j = 0; j < RECORD_LONGS; j++)
+				out.writeLong(records[offset + j]);
+		}
+
+		out.flush();
+	}
+}
@@ -1,137 +1,396 @@
-package com.mjaber.pedometer.logger;
-
-import java.util.Collections;
-import java.util.LinkedList;
-import java.util.List;
-
-import android.location.Location;
-
-/**
- * 
- * @author Mustafa Jaber 'mstfajbr@gmail.com'
- *
- */
-public class DataLogger {
-
-	// DataLogger singleton
-	private static DataLogger instance = null;
-
-	// Debugging Tag
-	private static final String TAG = "DataLogger";
-
-	private List<LocationData> locations;
-
-	private int counter = 0;
-
-	private double prevLatitude;
-	private double prevLongitude;
-	private long prevTime;
-
-	private long firstTime;
-	private double currDistance;
-
-	protected DataLogger() {
-
-		locations = new LinkedList<LocationData>();
-
-	}
-
-	public static DataLogger getInstance() {
-		if (instance == null)
-			instance = new DataLogger();
-
-		return instance;
-	}
-
-	public synchronized void addLocation(Location location) {
-
-		addLocation(location.getLongitude(), location.getLatitude(),
-				location.getAltitude(), location.getTime());
-	}
-
-	public synchronized void addLocation(double longitude, double latitude,
-			long time) {
-
-		addLocation(longitude, latitude, 0.0, time);
-
-		LocationData data = new LocationData(longitude, latitude, 0.0, time);
-
-		locations.add(data);
-		counter++;
-	}
-
-	public synchronized void addLocation(double longitude, double latitude,
-			double altitude, long time) {
-
-		if (locations.size() == 0) {
-			firstTime = time;
-		}
-
-		LocationData data = new LocationData(longitude, latitude, altitude,
-				time);
-
-		prevLongitude = longitude;
-		prevLatitude = latitude;
-		prevTime = time;
-
-		locations.add(data);
-		counter++;
-	}
-
-	public synchronized void writeGPXfile() {
-
-		Thread thread = new Thread(new Runnable() {
-
-			@Override
-			public void run() {
-				GPXWriter.writeFile(Collections.unmodifiableList(locations));
-			}
-		});
-
-		thread.start();
-
-		resetData();
-
-	}
-
-	private void resetData() {
-		counter = 0;
-		prevLongitude = 0;
-		prevLatitude = 0;
-		prevTime = 0;
-		currDistance = 0;
-		locations.clear();
-	}
-
-	public double getPrevLatitude() {
-		return prevLatitude;
-	}
-
-	public double getPrevLongitude() {
-		return prevLongitude;
-	}
-
-	public long getPrevTime() {
-		return prevTime;
-	}
-
-	public double getCurrDistance() {
-		return currDistance;
-	}
-
-	public void setCurrDistance(double currDistance) {
-		this.currDistance = currDistance;
-	}
-
-	public long getFirstTime() {
-		return firstTime;
-	}
-
-	public void setFirstTime(long firstTime) {
-		this.firstTime = firstTime;
-	}
-
-	public int getCounter() {
-		return counter;
-	}
-}
+package com.mjaber.pedometer.logger;
+
+import java.io.File;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.mjaber.pedometer.Application;
+import com.mjaber.pedometer.GeoMath;
+
+import android.location.Location;
+
+/**
+ * Logs the track of the session. The GPS thread and the sensor thread add
+ * locations at the same time, they only put them into a lock-free
+ * {@link LocationRing}. A single consumer takes them out in order, adds them
+ * to the {@link TrackLog} and the length of the track, and publishes the
+ * last location and the length through a sequence lock, so readers on any
+ * thread get a consistent pair without a lock through
+ * getLastLocation(LastLocation).
+ *
+ * The consumer is a thread of its own, woken once per burst of locations.
+ * Whatever needs every location added so far, the export, a reset or
+ * DeadReckoning.start(), drains the ring itself with flush(), the methods of
+ * the consumer side are synchronized for that.
+ *
+ * @author Mustafa Jaber 'mstfajbr@gmail.com'
+ *
+ */
+public class DataLogger {
+
+	/**
+	 * The location logged last and the length of the track up to it, taken
+	 * together. The caller keeps the instance and has it filled again.
+	 */
+	public static final class LastLocation {
+
+		private double longitude;
+		private double latitude;
+		private double altitude;
+		private long time;
+		private double trackLength;
+		private int counter;
+
+		public double getLongitude() {
+			return longitude;
+		}
+
+		public double getLatitude() {
+			return latitude;
+		}
+
+		public double getAltitude() {
+			return altitude;
+		}
+
+		public long getTime() {
+			return time;
+		}
+
+		/**
+		 * length of the logged track in meters up to the location
+		 */
+		public double getTrackLength() {
+			return trackLength;
+		}
+
+		/**
+		 * number of locations logged up to this one
+		 */
+		public int getCounter() {
+			return counter;
+		}
+	}
+
+	// DataLogger singleton, created eagerly, several threads ask for it
+	private static final DataLogger instance = new DataLogger();
+
+	// Debugging Tag
+	private static final String TAG = "DataLogger";
+
+	// locations waiting for the consumer, a minute at 1Hz with a step every
+	// few hundred milliseconds
+	private static final int RING_CAPACITY = 1024;
+
+	private final LocationRing ring = new LocationRing(RING_CAPACITY);
+
+	// true while a drain is handed to the consumer thread and didn't start
+	private final AtomicBoolean drainScheduled = new AtomicBoolean();
+
+	// drains the ring in the background
+	private final Executor consumer = Executors
+			.newSingleThreadExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "DataLogger");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
+	private final Runnable drainer = new Runnable() {
+		@Override
+		public void run() {
+			// cleared before draining, locations added from now on schedule
+			// a new drain or are seen by this one
+			drainScheduled.set(false);
+
+			flush();
+		}
+	};
+
+	// logs the drained locations, on the consumer side
+	private final LocationRing.Consumer logger = new LocationRing.Consumer() {
+		@Override
+		public void onLocation(double longitude, double latitude,
+				double altitude, long time) {
+			log(longitude, latitude, altitude, time);
+		}
+	};
+
+	// directory the points beyond the memory budget are spilled to, null
+	// until the service set it
+	private File spillDirectory;
+
+	// the logged points, replaced by an empty log when they are written
+	private TrackLog points = new TrackLog(null,
+			Application.TRACK_MEMORY_BUDGET);
+
+	// length of the logged track
+	private final GeoMath.Odometer track = new GeoMath.Odometer();
+
+	// the location drained last and the number of locations, published
+	// after every drain
+	private int logged = 0;
+	private double lastLongitude;
+	private double lastLatitude;
+	private double lastAltitude;
+	private long lastTime;
+
+	// false until the first location after a reset or an export, the
+	// producer adding it sets the first time
+	private final AtomicBoolean started = new AtomicBoolean();
+
+	private volatile long firstTime;
+	private volatile double currDistance;
+
+	// sequence number of the published state, odd while the consumer writes
+	// it, the state is published once per drain
+	private volatile int sequence = 0;
+
+	// the published state, volatile so a reader can't see any of them
+	// before the sequence number it checks them against
+	private volatile int counter = 0;
+	private volatile double prevLatitude;
+	private volatile double prevLongitude;
+	private volatile double prevAltitude;
+	private volatile long prevTime;
+	private volatile double trackLength;
+
+	protected DataLogger() {
+	}
+
+	public static DataLogger getInstance() {
+		return instance;
+	}
+
+	public void addLocation(Location location) {
+
+		addLocation(location.getLongitude(), location.getLatitude(),
+				location.getAltitude(), location.getTime());
+	}
+
+	public void addLocation(double longitude, double latitude, long time) {
+
+		addLocation(longitude, latitude, 0.0, time);
+	}
+
+	/**
+	 * queue a location for the consumer, safe to call from any thread and
+	 * without a lock unless the ring is full
+	 */
+	public void addLocation(double longitude, double latitude,
+			double altitude, long time) {
+
+		if (!started.get() && started.compareAndSet(false, true))
+			firstTime = time;
+
+		// the consumer fell behind, make room on this thread
+		while (!ring.offer(longitude, latitude, altitude, time))
+			flush();
+
+		if (!drainScheduled.get() && drainScheduled.compareAndSet(false, true))
+			consumer.execute(drainer);
+	}
+
+	/**
+	 * log every location added so far and publish the state once for all
+	 * of them
+	 */
+	public synchronized void flush() {
+		if (ring.drain(logger) > 0)
+			publish();
+	}
+
+	/**
+	 * add a drained location to the track, on the consumer side
+	 */
+	private void log(double longitude, double latitude, double altitude,
+			long time) {
+		track.add(latitude, longitude);
+		points.add(longitude, latitude, altitude, time);
+
+		logged++;
+		lastLongitude = longitude;
+		lastLatitude = latitude;
+		lastAltitude = altitude;
+		lastTime = time;
+	}
+
+	/**
+	 * publish the state, only called on the consumer side
+	 */
+	private void publish() {
+		int next = sequence + 1;
+
+		sequence = next;
+		counter = logged;
+		prevLongitude = lastLongitude;
+		prevLatitude = lastLatitude;
+		prevAltitude = lastAltitude;
+		prevTime = lastTime;
+		trackLength = track.getTotal();
+		sequence = next + 1;
+	}
+
+	public synchronized void writeGPXfile() {
+
+		flush();
+
+		// the writer owns the points logged so far, the next ones go into a
+		// new store
+		final TrackLog written = points;
+		points = new TrackLog(spillDirectory, Application.TRACK_MEMORY_BUDGET);
+
+		Thread thread = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				GPXWriter.writeFile(written);
+				written.clear();
+			}
+		});
+
+		thread.start();
+
+		resetData();
+
+	}
+
+	/**
+	 * drop all the logged locations without writing them, e.g. before an
+	 * offline replay
+	 */
+	public synchronized void reset() {
+		flush();
+		resetData();
+		firstTime = 0;
+	}
+
+	private void resetData() {
+		started.set(false);
+		currDistance = 0;
+		track.clearPoint();
+		track.setTotal(0.0);
+		points.clear();
+
+		logged = 0;
+		lastLongitude = 0;
+		lastLatitude = 0;
+		lastAltitude = 0;
+		lastTime = 0;
+		publish();
+	}
+
+	/**
+	 * latitude of the location logged last, lock-free
+	 */
+	public double getPrevLatitude() {
+		return prevLatitude;
+	}
+
+	/**
+	 * longitude of the location logged last, lock-free
+	 */
+	public double getPrevLongitude() {
+		return prevLongitude;
+	}
+
+	/**
+	 * fill the holder with the location logged last and the length of the
+	 * track up to it, all of the same drain. Safe to call from any thread
+	 * without a lock, it retries while a drain is being published.
+	 *
+	 * @return false when nothing was logged, the holder is zeroed then
+	 */
+	public boolean getLastLocation(LastLocation last) {
+		while (true) {
+			int before = sequence;
+
+			if ((before & 1) == 0) {
+				last.counter = counter;
+				last.longitude = prevLongitude;
+				last.latitude = prevLatitude;
+				last.altitude = prevAltitude;
+				last.time = prevTime;
+				last.trackLength = trackLength;
+
+				if (sequence == before)
+					return last.counter > 0;
+			}
+
+			Thread.yield();
+		}
+	}
+
+	/**
+	 * spill the points beyond Application.TRACK_MEMORY_BUDGET to segment
+	 * files in the directory, the segments left there by a killed process
+	 * are deleted the first time
+	 */
+	public synchronized void setSpillDirectory(File dir) {
+		if (spillDirectory == null)
+			TrackLog.deleteSegments(dir);
+
+		spillDirectory = dir;
+		points.setDirectory(dir);
+	}
+
+	/**
+	 * number of points logged, in memory and spilled
+	 */
+	public synchronized int getPointCount() {
+		flush();
+		return points.size();
+	}
+
+	/**
+	 * points of the log held in memory
+	 */
+	public synchronized int getPointsInMemory() {
+		return points.getPointsInMemory();
+	}
+
+	/**
+	 * time of the location logged last, lock-free
+	 */
+	public long getPrevTime() {
+		return prevTime;
+	}
+
+	/**
+	 * length of the logged track in meters, GPS fixes and steps alike, up to
+	 * the location logged last, lock-free. Taken with the location by
+	 * getLastLocation(LastLocation).
+	 */
+	public double getTrackLength() {
+		return trackLength;
+	}
+
+	public double getCurrDistance() {
+		return currDistance;
+	}
+
+	public void setCurrDistance(double currDistance) {
+		this.currDistance = currDistance;
+	}
+
+	public long getFirstTime() {
+		return firstTime;
+	}
+
+	public void setFirstTime(long firstTime) {
+		this.firstTime = firstTime;
+	}
+
+	/**
+	 * number of locations logged since the last reset or export, lock-free.
+	 * The locations still in the ring are not counted, flush() first to
+	 * count every location added so far.
+	 */
+	public int getCounter() {
+		return counter;
+	}
+}
@@ -1,171 +1,143 @@
-package com.mjaber.pedometer.logger;
-
-import java.io.BufferedWriter;
-import java.io.File;
-import java.io.FileWriter;
-import java.io.IOException;
-import java.io.StringWriter;
-import java.text.SimpleDateFormat;
-import java.util.List;
-import java.util.Locale;
-
-import org.xmlpull.v1.XmlSerializer;
-
-import android.os.Environment;
-import android.util.Log;
-import android.util.Xml;
-
-/**
- * 
- * @author Mustafa Jaber 'mstfajbr@gmail.com'
- *
- */
-public class GPXWriter {
-	
-	private static final String TAG = "DataLogger";
-	
-	private static XmlSerializer xmlSerializer;
-	private static StringWriter writer;
-	private static SimpleDateFormat sdf;
-	
-	private static void writeHeaders(){
-		
-		Log.d(TAG, "Called writeHeaders");
-		
-		xmlSerializer = Xml.newSerializer();
-		sdf = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'", Locale.GERMANY);
-		
-		try {
-			xmlSerializer.setOutput(writer);
-			// start DOCUMENT
-			xmlSerializer.startDocument("UTF-8", null);
-			// open tag: <kml>
-			xmlSerializer.startTag("","gpx");
-			// add attribute tag: <xmlns>
-			xmlSerializer.attribute("", "version", "1.1");
-			// add attribute tag: <xmlns>
-			xmlSerializer.attribute("", "creator", "Pedometer"); 
-			// add attribute tag: <xmlns>
-			xmlSerializer.attribute("", "xmlns:xsi", "http://www.w3.org/2001/XMLSchema-instance"); 
-			// add attribute tag: <xmlns>
-			xmlSerializer.attribute("", "xmlns", "http://www.topografix.com/GPX/1/1");
-			// add attribute tag: <xmlns>
-			xmlSerializer.attribute("", "xsi:schemaLocation", "http://www.topografix.com/GPX/1/1 http://www.topografix.com/GPX/1/1/gpx.xsd"); 
-			// open tag: <metadata>
-			xmlSerializer.startTag("","metadata");
-			// open tag: <time>
-			xmlSerializer.startTag("","time");
-			// add entry in time
-			xmlSerializer.text(sdf.format(System.currentTimeMillis()).toString());
-			// end tag: </time> 
-			xmlSerializer.endTag("","time");
-			// end tag: </,metadata> 
-			xmlSerializer.endTag("","metadata");
-			// open tag: <Folder>
-			xmlSerializer.startTag("","trk");
-			// open tag: <name>
-			xmlSerializer.startTag("","trkseg");
-			
-		}catch(Exception e){
-			Log.e(TAG, "Exception when creating XML:1 ");
-		}
-	}
-	
-	private static void writeLocationData(double longitute, double latitude, double altitude,long time){
-		try{
-			// open tag: <trkpt>	
-			xmlSerializer.startTag("","trkpt");
-			xmlSerializer.attribute("", "lat", Double.toString(latitude));
-			xmlSerializer.attribute("", "lon", Double.toString(longitute));
-				
-			// open tag: <ele>
-			xmlSerializer.startTag("","ele");
-			// add entry Timestamp as name of point
-			xmlSerializer.text(Double.toString(altitude));
-			// end tag: </ele> 
-			xmlSerializer.endTag("","ele");
-			
-			// open tag: <time>
-			xmlSerializer.startTag("","time");
-			// add entry Timestamp as name of point
-			xmlSerializer.text(sdf.format(time).toString());
-			// end tag: </time> 
-			xmlSerializer.endTag("","time");
-	
-			//end tag: </trkpt>
-			xmlSerializer.endTag("","trkpt");
-			
-		}catch(Exception e){
-			Log.e(TAG, "Exception when creating XML:1 ");
-			e.printStackTrace();
-		}
-	}
-	
-	private static void writeClosingHeaders(){
-		
-		Log.d(TAG, "Called writeClosingHeaders");
-		
-		try{
-			//end tag: </Folder>
-			xmlSerializer.endTag("","trkseg");
-			//end tag: </Document>
-			xmlSerializer.endTag("","trk");
-			// close tag: </kml>
-			xmlSerializer.endTag("", "gpx");
-			// end DOCUMENT
-			xmlSerializer.endDocument();
-		}catch(Exception e){
-			Log.e(TAG, "Exception when creating XML:1 ");
-		}
-	}
-	
-	public static synchronized void writeFile(List<LocationData> locations){
-		
-		writer = new StringWriter();
-		
-		writeHeaders();
-		
-		for(LocationData location : locations){
-			writeLocationData(location.getLongitute(), location.getLatitute(),
-					location.getAltitude(), location.getTime());
-		}
-		
-		writeClosingHeaders();
-		
-		//Create external File
-		File sdCard = Environment.getExternalStorageDirectory();
-		File dir = new File(sdCard.getAbsolutePath(), "PedometerLogger");
-		
-		if(!dir.exists())
-			dir.mkdir();
-		
-		if(sdCard.canWrite()){
-			File gpxFile= new File(dir, "gpxFile"+System.currentTimeMillis()+".gpx");
-			FileWriter gpxWriter = null;
-			try {
-				gpxWriter = new FileWriter(gpxFile);
-			} catch (IOException e) {
-				e.printStackTrace();
-				Log.e(TAG, "File write failed: " + e.toString());
-			}
-			BufferedWriter out = new BufferedWriter(gpxWriter);
-			try {
-				out.write(writer.toString());
-			} catch (IOException e) {
-				e.printStackTrace();
-				Log.e(TAG, "File write failed: " + e.toString());
-			}finally{
-				try {
-					out.close();
-				} catch (IOException e) {
-					e.printStackTrace();
-					Log.e(TAG, "File write failed: " + e.toString());
-				}
-			}
-			
-		}
-		
-		
-	}
-	
-}
+package com.mjaber.pedometer.logger;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Locale;
+
+import com.mjaber.pedometer.EventBus;
+
+import android.os.Environment;
+import android.util.Log;
+
+/**
+ * 
+ * @author Mustafa Jaber 'mstfajbr@gmail.com'
+ *
+ */
+public class GPXWriter {
+	
+	private static final String TAG = "DataLogger";
+	
+	private static void writeHeaders(Writer out, SimpleDateFormat sdf)
+			throws IOException {
+		
+		// start DOCUMENT
+		out.write("<?xml version='1.0' encoding='UTF-8' standalone='yes' ?>");
+		// open tag: <gpx> with its attributes
+		out.write("<gpx version=\"1.1\" creator=\"Pedometer\""
+				+ " xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\""
+				+ " xmlns=\"http://www.topografix.com/GPX/1/1\""
+				+ " xsi:schemaLocation=\"http://www.topografix.com/GPX/1/1"
+				+ " http://www.topografix.com/GPX/1/1/gpx.xsd\">");
+		// <metadata> with the creation <time>
+		out.write("<metadata><time>");
+		out.write(sdf.format(System.currentTimeMillis()));
+		out.write("</time></metadata>");
+		// open tags: <trk><trkseg>
+		out.write("<trk><trkseg>");
+	}
+	
+	private static void writeLocationData(Writer out, SimpleDateFormat sdf,
+			double longitute, double latitude, double altitude, long time)
+			throws IOException {
+		
+		// open tag: <trkpt>
+		out.write("\n<trkpt lat=\"");
+		out.write(Double.toString(latitude));
+		out.write("\" lon=\"");
+		out.write(Double.toString(longitute));
+		out.write("\">");
+		
+		// <ele> entry
+		out.write("<ele>");
+		out.write(Double.toString(altitude));
+		out.write("</ele>");
+		
+		// <time> entry
+		out.write("<time>");
+		out.write(sdf.format(time));
+		out.write("</time>");
+		
+		//end tag: </trkpt>
+		out.write("</trkpt>");
+	}
+	
+	private static void writeClosingHeaders(Writer out) throws IOException {
+		
+		// end tags: </trkseg></trk></gpx>
+		out.write("\n</trkseg></trk></gpx>");
+	}
+	
+	/**
+	 * stream the locations as a GPX document, the document is never held in
+	 * memory as a whole
+	 */
+	public static void write(TrackLog points, Writer out)
+			throws IOException {
+		
+		SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'",
+				Locale.GERMANY);
+		
+		writeHeaders(out, sdf);
+		
+		TrackLog.Cursor point = points.cursor();
+		while (point.moveToNext()) {
+			writeLocationData(out, sdf, point.getLongitude(),
+					point.getLatitude(), point.getAltitude(), point.getTime());
+		}
+		
+		writeClosingHeaders(out);
+		
+		out.flush();
+	}
+	
+	public static synchronized void writeFile(TrackLog points){
+		
+		Log.d(TAG, "Called writeFile");
+		
+		//Create external File
+		File sdCard = Environment.getExternalStorageDirectory();
+		File dir = new File(sdCard.getAbsolutePath(), "PedometerLogger");
+		
+		if(!dir.exists())
+			dir.mkdir();
+		
+		if(sdCard.canWrite()){
+			File gpxFile= new File(dir, "gpxFile"+System.currentTimeMillis()+".gpx");
+			Writer out = null;
+			boolean success = true;
+			try {
+				out = new BufferedWriter(new FileWriter(gpxFile));
+				write(points, out);
+			} catch (IOException e) {
+				success = false;
+				e.printStackTrace();
+				Log.e(TAG, "File write failed: " + e.toString());
+			}finally{
+				if (out != null) {
+					try {
+						out.close();
+					} catch (IOException e) {
+						success = false;
+						e.printStackTrace();
+						Log.e(TAG, "File write failed: " + e.toString());
+					}
+				}
+			}
+			
+			EventBus.getInstance().publish(
+					new EventBus.ExportFinished(gpxFile.getAbsolutePath(),
+							success));
+		} else {
+			EventBus.getInstance().publish(
+					new EventBus.ExportFinished(null, false));
+		}
+		
+		
+	}
+	
+}
@@ -0,0 +1,129 @@
+package com.mjaber.pedometer.logger;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bounded queue of locations from several producer threads to a single
+ * consumer, without locks. The slots are preallocated parallel arrays, a
+ * producer claims the next one by moving the tail with a compare-and-set,
+ * writes its values and then publishes the slot through its sequence
+ * number. The consumer takes the published slots in order and hands them
+ * back to the producers one capacity later.
+ *
+ * The sequence number of a slot is the position it can be claimed for while
+ * it is free, and that position + 1 once the values were written. Nothing is
+ * allocated per location.
+ *
+ * @author Mustafa Jaber 'mstfajbr@gmail.com'
+ *
+ */
+public class LocationRing {
+
+	/**
+	 * Takes the locations out of the ring
+	 */
+	public interface Consumer {
+		void onLocation(double longitude, double latitude, double altitude,
+				long time);
+	}
+
+	private final int capacity;
+	private final int mask;
+
+	private final double[] longitudes;
+	private final double[] latitudes;
+	private final double[] altitudes;
+	private final long[] times;
+
+	private final AtomicLongArray sequences;
+
+	// next position to claim, moved by the producers
+	private final AtomicLong tail = new AtomicLong();
+
+	// next position to consume, only touched by the consumer
+	private long head = 0;
+
+	/**
+	 * @param capacity
+	 *            slots of the ring, rounded up to a power of two
+	 */
+	public LocationRing(int capacity) {
+		int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+
+		this.capacity = size;
+		this.mask = size - 1;
+
+		longitudes = new double[size];
+		latitudes = new double[size];
+		altitudes = new double[size];
+		times = new long[size];
+
+		sequences = new AtomicLongArray(size);
+		for (int i = 0; i < size; i++)
+			sequences.set(i, i);
+	}
+
+	/**
+	 * add a location, safe to call from any thread
+	 *
+	 * @return false when the ring is full, the consumer has to drain it
+	 *         first
+	 */
+	public boolean offer(double longitude, double latitude, double altitude,
+			long time) {
+		long position;
+		int index;
+
+		while (true) {
+			position = tail.get();
+			index = (int) position & mask;
+
+			long sequence = sequences.get(index);
+			if (sequence < position)
+				return false;
+
+			// a slot already claimed by another producer otherwise
+			if (sequence == position
+					&& tail.compareAndSet(position, position + 1))
+				break;
+		}
+
+		longitudes[index] = longitude;
+		latitudes[index] = latitude;
+		altitudes[index] = altitude;
+		times[index] = time;
+
+		// the values are visible to the consumer before the sequence number
+		sequences.lazySet(index, position + 1);
+		return true;
+	}
+
+	/**
+	 * hand the published locations to the consumer in the order they were
+	 * claimed, stops at a slot claimed but not written yet. Only one thread
+	 * may drain at a time.
+	 *
+	 * @return the number of locations taken
+	 */
+	public int drain(Consumer consumer) {
+		int taken = 0;
+
+		while (true) {
+			int index = (int) head & mask;
+			if (sequences.get(index) != head + 1)
+				return taken;
+
+			consumer.onLocation(longitudes[index], latitudes[index],
+					altitudes[index], times[index]);
+
+			sequences.lazySet(index, head + capacity);
+			head++;
+			taken++;
+		}
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+}
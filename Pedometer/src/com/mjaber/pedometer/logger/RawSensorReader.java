@@ -0,0 +1,172 @@
+package com.mjaber.pedometer.logger;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Cursor over the segments written by {@link RawSensorRecorder}. Every segment
+ * is mapped read-only and the getters read the current record straight from
+ * the mapping, nothing is copied or allocated per record.
+ *
+ * <pre>
+ * RawSensorReader reader = new RawSensorReader(segments);
+ * while (reader.next()) {
+ * 	if (reader.getType() == RawSensorRecorder.TYPE_LOCATION)
+ * 		...
+ * }
+ * reader.close();
+ * </pre>
+ *
+ * @author Mustafa Jaber 'mstfajbr@gmail.com'
+ *
+ */
+public class RawSensorReader {
+
+	private final File[] segments;
+	private int segment = -1;
+
+	private FileInputStream stream;
+	private MappedByteBuffer buffer;
+
+	// offset of the current record, -1 before the first call to next()
+	private int offset = -1;
+
+	public RawSensorReader(File... segments) {
+		this.segments = segments;
+	}
+
+	/**
+	 * the segments of one recording in the given directory, in the order they
+	 * were written
+	 *
+	 * @param name
+	 *            the recording name, e.g. "raw1400000000000"
+	 */
+	public static File[] findSegments(File dir, String name) {
+		int count = 0;
+		while (new File(dir, name + "_" + count + ".bin").exists())
+			count++;
+
+		File[] segments = new File[count];
+		for (int i = 0; i < count; i++)
+			segments[i] = new File(dir, name + "_" + i + ".bin");
+
+		return segments;
+	}
+
+	/**
+	 * move to the next record
+	 *
+	 * @return false when all the segments are exhausted
+	 */
+	public boolean next() throws IOException {
+		while (true) {
+			if (buffer != null) {
+				int nextOffset = offset + RawSensorRecorder.RECORD_SIZE;
+				if (nextOffset + RawSensorRecorder.RECORD_SIZE <= buffer.limit()
+						&& buffer.getInt(nextOffset) != 0) {
+					offset = nextOffset;
+					return true;
+				}
+			}
+
+			if (segment + 1 >= segments.length) {
+				closeSegment();
+				return false;
+			}
+
+			openSegment(++segment);
+		}
+	}
+
+	public int getType() {
+		return buffer.getInt(offset);
+	}
+
+	public long getTimestamp() {
+		return buffer.getLong(offset + 8);
+	}
+
+	public float getX() {
+		return buffer.getFloat(offset + 16);
+	}
+
+	public float getY() {
+		return buffer.getFloat(offset + 20);
+	}
+
+	public float getZ() {
+		return buffer.getFloat(offset + 24);
+	}
+
+	/**
+	 * latitude of a {@link RawSensorRecorder#TYPE_LOCATION} record
+	 */
+	public double getLatitude() {
+		return buffer.getDouble(offset + 16);
+	}
+
+	/**
+	 * longitude of a {@link RawSensorRecorder#TYPE_LOCATION} record
+	 */
+	public double getLongitude() {
+		return buffer.getDouble(offset + 24);
+	}
+
+	/**
+	 * accuracy in meters of a {@link RawSensorRecorder#TYPE_LOCATION} record
+	 */
+	public float getAccuracy() {
+		return buffer.getFloat(offset + 4);
+	}
+
+	/**
+	 * go back to the first record of the first segment
+	 */
+	public void rewind() {
+		closeSegment();
+		segment = -1;
+	}
+
+	public void close() {
+		closeSegment();
+	}
+
+	private void openSegment(int index) throws IOException {
+		closeSegment();
+
+		stream = new FileInputStream(segments[index]);
+		FileChannel channel = stream.getChannel();
+		buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+		if (buffer.limit() < RawSensorRecorder.HEADER_SIZE
+				|| buffer.getInt(0) != RawSensorRecorder.MAGIC
+				|| buffer.getInt(4) != RawSensorRecorder.VERSION) {
+			closeSegment();
+			throw new IOException("Not a raw sensor segment: "
+					+ segments[index]);
+		}
+
+		// next() moves on to the first record
+		offset = buffer.getInt(8) - RawSensorRecorder.RECORD_SIZE;
+	}
+
+	private void closeSegment() {
+		buffer = null;
+		offset = -1;
+
+		if (stream != null) {
+			try {
+				stream.close();
+			} catch (IOException e) {
+				// nothing was written, there is nothing to lose
+			}
+			stream = null;
+		}
+	}
+}
@@ -0,0 +1,199 @@
+package com.mjaber.pedometer.logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import android.util.Log;
+
+/**
+ * Appends raw sensor events to memory-mapped segment files so a walk can be
+ * replayed later. Every record has the same width: sensor type, an auxiliary
+ * float, the timestamp in nanoseconds and a 16 byte payload holding either
+ * three floats or, for location fixes, latitude and longitude as doubles.
+ *
+ * All values are little endian. A segment is pre-sized and mapped once,
+ * recording an event only writes into the mapping, so there is no allocation
+ * and no locking per event. Events have to be recorded from one thread, the
+ * sensor and location callbacks of the services are both delivered on the
+ * main thread.
+ *
+ * @author Mustafa Jaber 'mstfajbr@gmail.com'
+ *
+ */
+public class RawSensorRecorder {
+
+	// RawSensorRecorder singleton
+	private static RawSensorRecorder instance = null;
+
+	// Debugging Tag
+	private static final String TAG = "RawSensorRecorder";
+
+	// "PDRS" at the start of every segment
+	static final int MAGIC = 0x50445253;
+	static final int VERSION = 1;
+
+	// sizes of the segment header and of a record in bytes
+	static final int HEADER_SIZE = 32;
+	static final int RECORD_SIZE = 32;
+
+	// type of location records, Android sensor types are all positive and a
+	// zero type marks the unused end of a segment
+	public static final int TYPE_LOCATION = -1;
+
+	// records per segment, 32MB or about 80 minutes at SENSOR_DELAY_FASTEST
+	// with two sensors at 100Hz each
+	public static final int SEGMENT_RECORDS = 1 << 20;
+
+	private File dir;
+	private String name;
+	private int segment;
+
+	private RandomAccessFile file;
+	private MappedByteBuffer buffer;
+
+	protected RawSensorRecorder() {
+	}
+
+	public static RawSensorRecorder getInstance() {
+		if (instance == null)
+			instance = new RawSensorRecorder();
+
+		return instance;
+	}
+
+	/**
+	 * start a new recording in the given directory, its segments are named
+	 * raw<start time>_<segment>.bin
+	 */
+	public void start(File dir) {
+		if (buffer != null)
+			stop();
+
+		this.dir = dir;
+		name = "raw" + System.currentTimeMillis();
+		segment = 0;
+
+		if (!dir.exists())
+			dir.mkdirs();
+
+		openSegment();
+	}
+
+	public boolean isRecording() {
+		return buffer != null;
+	}
+
+	/**
+	 * record a sensor event, the values are stored as they were delivered
+	 */
+	public void record(int type, long timestamp, float x, float y, float z) {
+		if (!hasSpace())
+			return;
+
+		buffer.putInt(type);
+		buffer.putFloat(0f);
+		buffer.putLong(timestamp);
+		buffer.putFloat(x);
+		buffer.putFloat(y);
+		buffer.putFloat(z);
+		buffer.putInt(0);
+	}
+
+	/**
+	 * record a location fix, the timestamp has to use the clock of the sensor
+	 * events
+	 */
+	public void recordLocation(long timestamp, double latitude,
+			double longitude, float accuracy) {
+		if (!hasSpace())
+			return;
+
+		buffer.putInt(TYPE_LOCATION);
+		buffer.putFloat(accuracy);
+		buffer.putLong(timestamp);
+		buffer.putDouble(latitude);
+		buffer.putDouble(longitude);
+	}
+
+	/**
+	 * roll over to the next segment when the current one is full
+	 * 
+	 * @return false when nothing is recorded
+	 */
+	private boolean hasSpace() {
+		if (buffer == null)
+			return false;
+
+		if (!buffer.hasRemaining()) {
+			closeSegment();
+			segment++;
+			openSegment();
+		}
+
+		return buffer != null;
+	}
+
+	/**
+	 * finish the recording, the last segment is cut to its used length
+	 */
+	public void stop() {
+		if (buffer != null)
+			closeSegment();
+	}
+
+	private void openSegment() {
+		File segmentFile = new File(dir, name + "_" + segment + ".bin");
+		long size = HEADER_SIZE + (long) SEGMENT_RECORDS * RECORD_SIZE;
+
+		try {
+			file = new RandomAccessFile(segmentFile, "rw");
+			file.setLength(size);
+
+			buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+					size);
+			buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+			buffer.putInt(MAGIC);
+			buffer.putInt(VERSION);
+			buffer.putInt(HEADER_SIZE);
+			buffer.putInt(RECORD_SIZE);
+			buffer.position(HEADER_SIZE);
+
+		} catch (IOException e) {
+			Log.e(TAG, "Opening segment failed: " + e.toString());
+			buffer = null;
+			closeFile();
+		}
+	}
+
+	private void closeSegment() {
+		int used = buffer.position();
+
+		buffer.force();
+		buffer = null;
+
+		try {
+			file.getChannel().truncate(used);
+		} catch (IOException e) {
+			Log.e(TAG, "Truncating segment failed: " + e.toString());
+		}
+
+		closeFile();
+	}
+
+	private void closeFile() {
+		if (file == null)
+			return;
+
+		try {
+			file.close();
+		} catch (IOException e) {
+			Log.e(TAG, "Closing segment failed: " + e.toString());
+		}
+		file = null;
+	}
+}
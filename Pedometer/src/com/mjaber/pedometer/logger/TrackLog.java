@@ -0,0 +1,454 @@
+package com.mjaber.pedometer.logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.util.Log;
+
+/**
+ * The logged track with a bounded memory footprint. The points are added to
+ * a {@link TrackStore} of CHUNK_POINTS, a full one is sealed, and once the
+ * points in memory exceed the budget the oldest sealed chunks are written
+ * to segment files on a background thread and dropped from memory. A
+ * {@link Cursor} reads the chunks in order, from memory or from their
+ * segment, so the export doesn't see where the points are.
+ *
+ * A segment holds a 16 byte header, magic, version, record size and number
+ * of points, followed by one 32 byte record per point: longitude, latitude
+ * and altitude as doubles and the time as a long, all little endian like
+ * the segments of the {@link RawSensorRecorder}. When a segment can't be
+ * written the chunk stays in memory and nothing is spilled anymore.
+ *
+ * The methods are synchronized with the thread writing the segments. A
+ * cursor may only be used while no points are added, on a log handed over
+ * to the exporting thread or under the lock of the {@link DataLogger}.
+ *
+ * @author Mustafa Jaber 'mstfajbr@gmail.com'
+ *
+ */
+public class TrackLog {
+
+	// Debugging Tag
+	private static final String TAG = "TrackLog";
+
+	// "PDRT" at the start of every segment
+	static final int MAGIC = 0x50445254;
+	static final int VERSION = 1;
+
+	// sizes of the segment header and of a record in bytes
+	static final int HEADER_SIZE = 16;
+	static final int RECORD_SIZE = 32;
+
+	// points per chunk, 128KB in memory or in a segment
+	public static final int CHUNK_POINTS = 4096;
+
+	// extension of the segment files
+	public static final String SEGMENT_EXTENSION = ".seg";
+
+	// tells apart the logs created in the same millisecond
+	private static final AtomicInteger logs = new AtomicInteger();
+
+	// writes the segments of all the logs, one at a time
+	private static final ExecutorService spiller = Executors
+			.newSingleThreadExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "TrackSpill");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
+	// holds a chunk while it is written, only used on the spill thread
+	private static ByteBuffer spillBuffer;
+
+	/**
+	 * A sealed chunk, in memory until it was written to its segment
+	 */
+	private static final class Chunk {
+
+		final int size;
+
+		// the points while they are in memory, null once they are in the
+		// segment
+		volatile TrackStore points;
+		volatile File file;
+
+		// true once the log was cleared, a spill still running deletes its
+		// segment
+		boolean discarded = false;
+
+		Chunk(TrackStore points) {
+			this.points = points;
+			this.size = points.size();
+		}
+	}
+
+	/**
+	 * Reads the points of the log in the order they were added, starting
+	 * before the first one
+	 */
+	public final class Cursor {
+
+		private final Chunk[] chunks;
+		private final TrackStore active;
+		private final int activeSize;
+
+		// the chunk read, -1 before the first, chunks.length for the
+		// active one
+		private int chunk = -1;
+		private TrackStore points;
+		private int size = 0;
+		private int index = -1;
+
+		// holds the points of a segment while they are read, created for the
+		// first one
+		private TrackStore buffer;
+		private ByteBuffer bytes;
+
+		Cursor(Chunk[] chunks, TrackStore active) {
+			this.chunks = chunks;
+			this.active = active;
+			this.activeSize = active.size();
+		}
+
+		/**
+		 * @return false after the last point
+		 * @throws IOException
+		 *             when a segment can't be read
+		 */
+		public boolean moveToNext() throws IOException {
+			while (++index >= size) {
+				if (chunk >= chunks.length)
+					return false;
+
+				chunk++;
+				index = -1;
+
+				if (chunk == chunks.length) {
+					points = active;
+					size = activeSize;
+				} else {
+					points = load(chunks[chunk]);
+					size = chunks[chunk].size;
+				}
+			}
+			return true;
+		}
+
+		private TrackStore load(Chunk chunk) throws IOException {
+			TrackStore inMemory = chunk.points;
+			if (inMemory != null)
+				return inMemory;
+
+			if (buffer == null) {
+				buffer = new TrackStore(CHUNK_POINTS);
+				bytes = ByteBuffer.allocate(HEADER_SIZE + CHUNK_POINTS
+						* RECORD_SIZE);
+				bytes.order(ByteOrder.LITTLE_ENDIAN);
+			}
+
+			readSegment(chunk.file, bytes, buffer);
+			return buffer;
+		}
+
+		public double getLongitude() {
+			return points.getLongitude(index);
+		}
+
+		public double getLatitude() {
+			return points.getLatitude(index);
+		}
+
+		public double getAltitude() {
+			return points.getAltitude(index);
+		}
+
+		public long getTime() {
+			return points.getTime(index);
+		}
+	}
+
+	// directory of the segments, null to keep everything in memory
+	private File dir;
+
+	// points kept in memory before the oldest chunks are spilled
+	private final int budget;
+
+	// segments are named <name>_<number>.seg
+	private final String name;
+	private int segments = 0;
+
+	private final List<Chunk> sealed = new ArrayList<Chunk>();
+
+	// the oldest sealed chunk not queued for the spill yet
+	private int nextSpill = 0;
+
+	private TrackStore active = new TrackStore(CHUNK_POINTS);
+
+	// points of the sealed chunks, and of those in memory and not queued for
+	// the spill
+	private int sealedPoints = 0;
+	private int memoryPoints = 0;
+
+	// true after a segment couldn't be written
+	private boolean spillFailed = false;
+
+	/**
+	 * @param dir
+	 *            directory of the segment files, null to keep all the points
+	 *            in memory
+	 * @param budget
+	 *            bytes the points may take in memory, at least two chunks
+	 *            are kept
+	 */
+	public TrackLog(File dir, int budget) {
+		this.dir = dir;
+		this.budget = Math.max(2 * CHUNK_POINTS, budget / RECORD_SIZE);
+		this.name = "track" + System.currentTimeMillis() + "_"
+				+ logs.getAndIncrement();
+	}
+
+	/**
+	 * spill to the directory from now on, null to stop spilling
+	 */
+	public synchronized void setDirectory(File dir) {
+		this.dir = dir;
+		spillIfOverBudget();
+	}
+
+	public synchronized void add(double longitude, double latitude,
+			double altitude, long time) {
+		active.add(longitude, latitude, altitude, time);
+
+		if (active.size() == CHUNK_POINTS)
+			seal();
+	}
+
+	private void seal() {
+		Chunk chunk = new Chunk(active);
+		sealed.add(chunk);
+		sealedPoints += chunk.size;
+		memoryPoints += chunk.size;
+
+		active = new TrackStore(CHUNK_POINTS);
+
+		spillIfOverBudget();
+	}
+
+	/**
+	 * queue the oldest chunks in memory for the spill until the rest fits
+	 * into the budget
+	 */
+	private void spillIfOverBudget() {
+		if (dir == null || spillFailed)
+			return;
+
+		while (nextSpill < sealed.size()
+				&& memoryPoints + active.size() > budget) {
+			final Chunk chunk = sealed.get(nextSpill++);
+			memoryPoints -= chunk.size;
+
+			final File file = new File(dir, name + "_" + segments++
+					+ SEGMENT_EXTENSION);
+			spiller.execute(new Runnable() {
+				@Override
+				public void run() {
+					spill(chunk, file);
+				}
+			});
+		}
+	}
+
+	/**
+	 * write a chunk to its segment and drop it from memory, on the spill
+	 * thread
+	 */
+	private void spill(Chunk chunk, File file) {
+		boolean written = writeSegment(chunk.points, file);
+
+		synchronized (this) {
+			if (chunk.discarded) {
+				file.delete();
+				return;
+			}
+
+			if (!written) {
+				file.delete();
+				memoryPoints += chunk.size;
+				spillFailed = true;
+				return;
+			}
+
+			chunk.file = file;
+			chunk.points = null;
+		}
+	}
+
+	private static boolean writeSegment(TrackStore points, File file) {
+		if (spillBuffer == null) {
+			spillBuffer = ByteBuffer.allocate(HEADER_SIZE + CHUNK_POINTS
+					* RECORD_SIZE);
+			spillBuffer.order(ByteOrder.LITTLE_ENDIAN);
+		}
+
+		ByteBuffer buffer = spillBuffer;
+		buffer.clear();
+
+		buffer.putInt(MAGIC);
+		buffer.putInt(VERSION);
+		buffer.putInt(RECORD_SIZE);
+		buffer.putInt(points.size());
+
+		TrackStore.Cursor point = points.cursor();
+		while (point.moveToNext()) {
+			buffer.putDouble(point.getLongitude());
+			buffer.putDouble(point.getLatitude());
+			buffer.putDouble(point.getAltitude());
+			buffer.putLong(point.getTime());
+		}
+		buffer.flip();
+
+		File parent = file.getParentFile();
+		if (parent != null && !parent.exists())
+			parent.mkdirs();
+
+		RandomAccessFile out = null;
+		try {
+			out = new RandomAccessFile(file, "rw");
+			FileChannel channel = out.getChannel();
+			while (buffer.hasRemaining())
+				channel.write(buffer);
+			return true;
+		} catch (IOException e) {
+			Log.e(TAG, "Writing segment failed: " + e.toString());
+			return false;
+		} finally {
+			if (out != null) {
+				try {
+					out.close();
+				} catch (IOException e) {
+					Log.e(TAG, "Closing segment failed: " + e.toString());
+				}
+			}
+		}
+	}
+
+	/**
+	 * read the points of a segment into the store, replacing its points
+	 */
+	private static void readSegment(File file, ByteBuffer buffer,
+			TrackStore points) throws IOException {
+		RandomAccessFile in = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = in.getChannel();
+			buffer.clear();
+			while (buffer.hasRemaining()) {
+				if (channel.read(buffer) < 0)
+					break;
+			}
+			buffer.flip();
+		} finally {
+			in.close();
+		}
+
+		if (buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC
+				|| buffer.getInt() != VERSION
+				|| buffer.getInt() != RECORD_SIZE)
+			throw new IOException("Not a track segment: " + file);
+
+		int size = buffer.getInt();
+		if (buffer.remaining() < size * RECORD_SIZE)
+			throw new IOException("Truncated track segment: " + file);
+
+		points.clear();
+		for (int i = 0; i < size; i++)
+			points.add(buffer.getDouble(), buffer.getDouble(),
+					buffer.getDouble(), buffer.getLong());
+	}
+
+	/**
+	 * number of points logged, in memory and on disk
+	 */
+	public synchronized int size() {
+		return sealedPoints + active.size();
+	}
+
+	public synchronized boolean isEmpty() {
+		return size() == 0;
+	}
+
+	/**
+	 * points held in memory, the ones being spilled included
+	 */
+	public synchronized int getPointsInMemory() {
+		int points = active.size();
+		for (Chunk chunk : sealed) {
+			if (chunk.points != null)
+				points += chunk.size;
+		}
+		return points;
+	}
+
+	/**
+	 * number of chunks written to segments
+	 */
+	public synchronized int getSpilledChunks() {
+		int spilled = 0;
+		for (Chunk chunk : sealed) {
+			if (chunk.file != null)
+				spilled++;
+		}
+		return spilled;
+	}
+
+	/**
+	 * a cursor before the first point
+	 */
+	public synchronized Cursor cursor() {
+		return new Cursor(sealed.toArray(new Chunk[sealed.size()]), active);
+	}
+
+	/**
+	 * drop all the points and delete the segments, segments still being
+	 * written are deleted when they are done
+	 */
+	public synchronized void clear() {
+		for (Chunk chunk : sealed) {
+			chunk.discarded = true;
+			if (chunk.file != null)
+				chunk.file.delete();
+		}
+
+		sealed.clear();
+		nextSpill = 0;
+		sealedPoints = 0;
+		memoryPoints = 0;
+		active.clear();
+	}
+
+	/**
+	 * delete the segments left behind by a process that was killed, before
+	 * any log of this process spills
+	 */
+	public static void deleteSegments(File dir) {
+		File[] files = dir.listFiles();
+		if (files == null)
+			return;
+
+		for (File file : files) {
+			if (file.getName().endsWith(SEGMENT_EXTENSION))
+				file.delete();
+		}
+	}
+}
@@ -0,0 +1,142 @@
+package com.mjaber.pedometer.logger;
+
+import java.util.Arrays;
+
+/**
+ * The logged track in parallel primitive arrays, one per value, instead of
+ * an object per location. A point costs 32 bytes, the arrays grow by half
+ * when they are full so adding is O(1) amortized, and reading walks the
+ * arrays by index or with a {@link Cursor} without creating any object.
+ *
+ * Not thread safe, {@link DataLogger} guards the store it is adding to and
+ * hands it over as a whole to the thread writing it out.
+ *
+ * @author Mustafa Jaber 'mstfajbr@gmail.com'
+ *
+ */
+public class TrackStore {
+
+	// capacity of a new store, about four minutes at 1Hz
+	private static final int INITIAL_CAPACITY = 256;
+
+	private double[] longitudes;
+	private double[] latitudes;
+	private double[] altitudes;
+	private long[] times;
+
+	private int size = 0;
+
+	/**
+	 * Reads the points in the order they were added. It starts before the
+	 * first point, moveToNext() goes to the next one.
+	 */
+	public final class Cursor {
+
+		private int index = -1;
+
+		/**
+		 * @return false after the last point
+		 */
+		public boolean moveToNext() {
+			return ++index < size;
+		}
+
+		public double getLongitude() {
+			return longitudes[index];
+		}
+
+		public double getLatitude() {
+			return latitudes[index];
+		}
+
+		public double getAltitude() {
+			return altitudes[index];
+		}
+
+		public long getTime() {
+			return times[index];
+		}
+	}
+
+	public TrackStore() {
+		this(INITIAL_CAPACITY);
+	}
+
+	public TrackStore(int capacity) {
+		capacity = Math.max(1, capacity);
+
+		longitudes = new double[capacity];
+		latitudes = new double[capacity];
+		altitudes = new double[capacity];
+		times = new long[capacity];
+	}
+
+	public void add(double longitude, double latitude, double altitude,
+			long time) {
+		if (size == times.length)
+			grow();
+
+		longitudes[size] = longitude;
+		latitudes[size] = latitude;
+		altitudes[size] = altitude;
+		times[size] = time;
+		size++;
+	}
+
+	private void grow() {
+		int capacity = size + (size >> 1) + 1;
+
+		longitudes = Arrays.copyOf(longitudes, capacity);
+		latitudes = Arrays.copyOf(latitudes, capacity);
+		altitudes = Arrays.copyOf(altitudes, capacity);
+		times = Arrays.copyOf(times, capacity);
+	}
+
+	/**
+	 * drop the points, the arrays are kept for the next ones
+	 */
+	public void clear() {
+		size = 0;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public double getLongitude(int index) {
+		checkIndex(index);
+		return longitudes[index];
+	}
+
+	public double getLatitude(int index) {
+		checkIndex(index);
+		return latitudes[index];
+	}
+
+	public double getAltitude(int index) {
+		checkIndex(index);
+		return altitudes[index];
+	}
+
+	public long getTime(int index) {
+		checkIndex(index);
+		return times[index];
+	}
+
+	private void checkIndex(int index) {
+		if (index < 0 || index >= size)
+			throw new IndexOutOfBoundsException("index " + index + ", size "
+					+ size);
+	}
+
+	/**
+	 * a cursor before the first point
+	 */
+	public Cursor cursor() {
+		return new Cursor();
+	}
+}
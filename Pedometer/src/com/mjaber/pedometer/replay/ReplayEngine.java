@@ -0,0 +1,187 @@
+package com.mjaber.pedometer.replay;
+
+import java.io.File;
+import java.io.IOException;
+
+import com.mjaber.pedometer.Application;
+import com.mjaber.pedometer.logger.DataLogger;
+import com.mjaber.pedometer.logger.RawSensorReader;
+import com.mjaber.pedometer.logger.RawSensorRecorder;
+import com.mjaber.pedometer.services.DeadReckoning;
+import com.mjaber.pedometer.services.GpsTracker;
+import com.mjaber.pedometer.services.PositionFilter;
+import com.mjaber.pedometer.services.SensorArbiter;
+
+/**
+ * Feeds a recording of {@link RawSensorRecorder} through the same dead
+ * reckoning and GPS logic the services run, outside a device. The sensor
+ * clock of the recording drives the deadline of the {@link SensorArbiter},
+ * so a replay is deterministic no matter how fast it runs.
+ *
+ * <pre>
+ * java com.mjaber.pedometer.replay.ReplayEngine &lt;dir&gt; &lt;recording&gt; [recorded]
+ * </pre>
+ *
+ * @author Mustafa Jaber 'mstfajbr@gmail.com'
+ *
+ */
+public class ReplayEngine implements GpsTracker.SensorSwitch,
+		SensorArbiter.Listener {
+
+	public enum Mode {
+		// as fast as possible, for throughput measurements
+		FAST,
+		// sleep between the records as long as they were apart when recorded
+		RECORDED
+	}
+
+	private final Mode mode;
+
+	private DeadReckoning deadReckoning;
+	private GpsTracker gpsTracker;
+	private SensorArbiter arbiter;
+	private ReplayReport report;
+
+	// true while the DeadReckoningService would have its sensors registered
+	private boolean sensorsStarted;
+
+	// replay time in milliseconds
+	private long now;
+
+	public ReplayEngine(Mode mode) {
+		this.mode = mode;
+	}
+
+	/**
+	 * replay a recording from the start, the DataLogger and the
+	 * PositionFilter are reset first
+	 */
+	public ReplayReport run(RawSensorReader reader) throws IOException,
+			InterruptedException {
+
+		DataLogger.getInstance().reset();
+		PositionFilter.getInstance().reset();
+		deadReckoning = new DeadReckoning();
+		gpsTracker = new GpsTracker(this);
+		arbiter = new SensorArbiter(this);
+		report = new ReplayReport();
+
+		// with the fusion the sensors run from the start
+		sensorsStarted = Application.POSITION_FUSION;
+		if (sensorsStarted)
+			deadReckoning.start();
+
+		float[] values = new float[3];
+
+		long firstTimestamp = -1;
+		long start = System.nanoTime();
+
+		while (reader.next()) {
+			long timestamp = reader.getTimestamp();
+			if (firstTimestamp < 0)
+				firstTimestamp = timestamp;
+
+			if (mode == Mode.RECORDED)
+				waitUntil(start + timestamp - firstTimestamp);
+
+			long time = timestamp / 1000000L;
+
+			// the timer of the PedometerService fires before the record
+			long deadline = arbiter.getDeadline();
+			if (deadline >= 0 && time >= deadline) {
+				now = deadline;
+				arbiter.onDeadline(now);
+			}
+
+			now = time;
+			report.records++;
+
+			int type = reader.getType();
+			if (type == RawSensorRecorder.TYPE_LOCATION) {
+				report.fixes++;
+				arbiter.onFix(GpsTracker.isAccurate(reader.getAccuracy()), now);
+				gpsTracker.onLocationChanged(reader.getLatitude(),
+						reader.getLongitude(), 0.0, reader.getAccuracy(), now,
+						now);
+
+			} else if (sensorsStarted) {
+				report.sensorSamples++;
+				values[0] = reader.getX();
+				values[1] = reader.getY();
+				values[2] = reader.getZ();
+				deadReckoning.onSensorChanged(type, timestamp, values, now);
+			}
+		}
+
+		// the locations still in the ring of the DataLogger are part of the
+		// replay
+		DataLogger.getInstance().flush();
+
+		report.elapsedNanos = System.nanoTime() - start;
+		report.steps = deadReckoning.getSteps();
+		report.distance = DataLogger.getInstance().getCurrDistance();
+
+		DataLogger.LastLocation last = new DataLogger.LastLocation();
+		DataLogger.getInstance().getLastLocation(last);
+		report.trackLength = last.getTrackLength();
+		report.latitude = last.getLatitude();
+		report.longitude = last.getLongitude();
+
+		return report;
+	}
+
+	/**
+	 * does what PedometerService does with a change of the data source
+	 */
+	@Override
+	public void onSourceChanged(String sensor) {
+		SensorArbiter.Transition transition = arbiter.getLastTransition();
+		report.switches.add(new ReplayReport.Switch(now, sensor,
+				transition.getReason(), transition.getLatency()));
+
+		gpsTracker.setCurrentSensor(sensor);
+	}
+
+	/**
+	 * does what the SensorSwitchReceiver of the DeadReckoningService does
+	 * with the broadcast of PedometerService
+	 */
+	@Override
+	public void switchSensor(String sensor, String action) {
+		if (Application.POSITION_FUSION)
+			return;
+
+		if (action.equals(Application.START)) {
+			deadReckoning.start();
+			sensorsStarted = true;
+		} else if (action.equals(Application.STOP)) {
+			deadReckoning.processBatch(now);
+			sensorsStarted = false;
+		}
+	}
+
+	private static void waitUntil(long deadline) throws InterruptedException {
+		long delay = deadline - System.nanoTime();
+		if (delay > 0)
+			Thread.sleep(delay / 1000000L, (int) (delay % 1000000L));
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 2) {
+			System.err.println("usage: ReplayEngine <dir> <recording> [recorded]");
+			System.exit(1);
+		}
+
+		File[] segments = RawSensorReader.findSegments(new File(args[0]),
+				args[1]);
+		Mode mode = args.length > 2 && args[2].equals("recorded") ? Mode.RECORDED
+				: Mode.FAST;
+
+		RawSensorReader reader = new RawSensorReader(segments);
+		try {
+			System.out.println(new ReplayEngine(mode).run(reader));
+		} finally {
+			reader.close();
+		}
+	}
+}
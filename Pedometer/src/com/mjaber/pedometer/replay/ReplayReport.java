@@ -0,0 +1,134 @@
+package com.mjaber.pedometer.replay;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * What a {@link ReplayEngine} run produced
+ *
+ * @author Mustafa Jaber 'mstfajbr@gmail.com'
+ *
+ */
+public class ReplayReport {
+
+	/**
+	 * A switch of the data source between GPS and ACCELEROMETER
+	 */
+	public static class Switch {
+
+		// replay time of the switch in milliseconds
+		public final long time;
+
+		// the new data source
+		public final String sensor;
+
+		// why the SensorArbiter switched
+		public final String reason;
+
+		// time in milliseconds from the event that caused the switch
+		public final long latency;
+
+		Switch(long time, String sensor, String reason, long latency) {
+			this.time = time;
+			this.sensor = sensor;
+			this.reason = reason;
+			this.latency = latency;
+		}
+
+		@Override
+		public String toString() {
+			return time + "ms " + sensor + " (" + reason + ", " + latency
+					+ "ms)";
+		}
+	}
+
+	// number of records read from the recording
+	long records;
+
+	// number of sensor events fed to the dead reckoning
+	long sensorSamples;
+
+	// number of location fixes fed to the GPS tracker
+	long fixes;
+
+	int steps;
+	double distance;
+
+	// length of the whole logged track, GPS fixes and steps
+	double trackLength;
+
+	double latitude;
+	double longitude;
+
+	// wall clock time of the replay
+	long elapsedNanos;
+
+	final List<Switch> switches = new ArrayList<Switch>();
+
+	public long getRecords() {
+		return records;
+	}
+
+	public long getSensorSamples() {
+		return sensorSamples;
+	}
+
+	public long getFixes() {
+		return fixes;
+	}
+
+	public int getSteps() {
+		return steps;
+	}
+
+	public double getDistance() {
+		return distance;
+	}
+
+	public double getTrackLength() {
+		return trackLength;
+	}
+
+	public double getLatitude() {
+		return latitude;
+	}
+
+	public double getLongitude() {
+		return longitude;
+	}
+
+	public long getElapsedNanos() {
+		return elapsedNanos;
+	}
+
+	/**
+	 * records processed per second of wall clock time
+	 */
+	public double getSamplesPerSecond() {
+		return elapsedNanos > 0 ? records * 1e9 / elapsedNanos : 0;
+	}
+
+	public List<Switch> getSwitches() {
+		return switches;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder();
+
+		builder.append("records: ").append(records);
+		builder.append("\nsensor samples: ").append(sensorSamples);
+		builder.append("\nlocation fixes: ").append(fixes);
+		builder.append("\nsteps: ").append(steps);
+		builder.append("\ndistance: ").append(distance);
+		builder.append("\ntrack length: ").append(trackLength);
+		builder.append("\nposition: ").append(latitude).append(", ")
+				.append(longitude);
+		builder.append("\nsamples/sec: ").append(getSamplesPerSecond());
+		builder.append("\nswitches: ").append(switches.size());
+		for (Switch s : switches)
+			builder.append("\n  ").append(s);
+
+		return builder.toString();
+	}
+}
@@ -0,0 +1,496 @@
+package com.mjaber.pedometer.services;
+
+import com.mjaber.pedometer.Application;
+import com.mjaber.pedometer.CadenceDetector;
+import com.mjaber.pedometer.EventBus;
+import com.mjaber.pedometer.Pedometer;
+import com.mjaber.pedometer.StepDetector;
+import com.mjaber.pedometer.StepTrace;
+import com.mjaber.pedometer.logger.DataLogger;
+
+import android.hardware.Sensor;
+
+/**
+ * The dead reckoning of {@link DeadReckoningService} without the Android
+ * service around it: sensor events go in, steps come out as locations in the
+ * {@link DataLogger}. It doesn't touch any Android API, so the same code runs
+ * in the service and in an offline replay.
+ *
+ * With Application.POSITION_FUSION the steps move the shared
+ * {@link PositionFilter} instead, and the fused position is logged.
+ *
+ * The events are fed on one thread. Readers on other threads take a
+ * {@link Snapshot}, published through a sequence lock over primitive fields
+ * so that publishing allocates nothing and never waits for a reader.
+ *
+ * @author Mustafa Jaber 'mstfajbr@gmail.com'
+ *
+ */
+public class DeadReckoning {
+
+	// number of batched accelerometer samples handed to the Pedometer at once
+	private static final int BATCH_SIZE = 128;
+
+	// length of a step in meters
+	private static final double STEP_LENGTH = 0.75;
+
+	/**
+	 * The state of the dead reckoning at one point in time
+	 */
+	public static final class Snapshot {
+
+		private final long sequence;
+		private final int steps;
+		private final double distance;
+		private final double orientation;
+		private final double latitude;
+		private final double longitude;
+
+		Snapshot(long sequence, int steps, double distance,
+				double orientation, double latitude, double longitude) {
+			this.sequence = sequence;
+			this.steps = steps;
+			this.distance = distance;
+			this.orientation = orientation;
+			this.latitude = latitude;
+			this.longitude = longitude;
+		}
+
+		/**
+		 * number of the snapshot, counted up on every publish
+		 */
+		public long getSequence() {
+			return sequence;
+		}
+
+		public int getSteps() {
+			return steps;
+		}
+
+		public double getDistance() {
+			return distance;
+		}
+
+		public double getOrientation() {
+			return orientation;
+		}
+
+		public double getLatitude() {
+			return latitude;
+		}
+
+		public double getLongitude() {
+			return longitude;
+		}
+	}
+
+	// step engine selected by Application.CADENCE_STEP_DETECTOR
+	private final StepDetector meter = Application.CADENCE_STEP_DETECTOR
+			? new CadenceDetector()
+			: new Pedometer();
+
+	// FusionState.UNKNOWN_HEADING until the first heading
+	private double orientation = FusionState.UNKNOWN_HEADING;
+	private double distance = 0.0;
+	private int steps = 0;
+
+	// the steps in meters from the last GPS fix
+	private final EnuProjector projector = new EnuProjector();
+
+	// the location the projector is anchored at, filled by start()
+	private final DataLogger.LastLocation lastLocation = new DataLogger.LastLocation();
+
+	// the fusion of the steps and the fixes, null without
+	// Application.POSITION_FUSION
+	private final PositionFilter positionFilter = Application.POSITION_FUSION
+			? PositionFilter.getInstance()
+			: null;
+
+	// position after the last step
+	private double latitude;
+	private double longitude;
+
+	// sequence number of the published state, odd while it is written
+	private volatile int sequence = 0;
+
+	// the published state, volatile so a reader can't see any of them
+	// before the sequence number it checks them against
+	private volatile int publishedSteps;
+	private volatile double publishedDistance;
+	private volatile double publishedOrientation = FusionState.UNKNOWN_HEADING;
+	private volatile double publishedLatitude;
+	private volatile double publishedLongitude;
+
+	// latest accelerometer and magnetic field values, the heading is only
+	// computed from them on a step and at a capped rate in between
+	private final FusionState fusion = new FusionState();
+
+	// true when a hardware step detector or step counter delivers the steps
+	// and the accelerometer is only needed for the heading
+	private boolean hardwareSteps = false;
+
+	// value of the step counter at the last step, -1 before its first event
+	private long stepCounter = -1;
+
+	// true when the accelerometer samples are collected for the bulk
+	// Pedometer update
+	private boolean batching = false;
+
+	// accelerometer samples waiting for the bulk Pedometer update
+	private final float[] batchX = new float[BATCH_SIZE];
+	private final float[] batchY = new float[BATCH_SIZE];
+	private final float[] batchZ = new float[BATCH_SIZE];
+	private final long[] batchTimestamps = new long[BATCH_SIZE];
+
+	// heading in effect at each sample of the batch, the steps found in it
+	// go in the direction of their own sample
+	private final double[] batchOrientations = new double[BATCH_SIZE];
+
+	// samples of the batch the steps were found at
+	private final int[] stepIndices = new int[BATCH_SIZE];
+	private int batchCount = 0;
+
+	/**
+	 * start counting from the distance handed over by the GPS
+	 */
+	public void start() {
+		DataLogger logger = DataLogger.getInstance();
+
+		distance = logger.getCurrDistance();
+
+		// the last location logged is the last GPS fix, it may still wait
+		// for the consumer of the DataLogger
+		logger.flush();
+		logger.getLastLocation(lastLocation);
+		projector.anchor(lastLocation.getLatitude(),
+				lastLocation.getLongitude());
+		latitude = projector.getLatitude();
+		longitude = projector.getLongitude();
+
+		// the step counter counts since boot, the first event after a start
+		// is the reference
+		stepCounter = -1;
+
+		meter.reset();
+
+		publish();
+	}
+
+	/**
+	 * feed a sensor event
+	 *
+	 * @param type
+	 *            the Sensor type
+	 * @param timestamp
+	 *            the event timestamp in nanoseconds
+	 * @param time
+	 *            the time in milliseconds logged with a step
+	 * @return true when the sample started a new batch, processBatch() has to
+	 *         be called once the current delivery finished
+	 */
+	public boolean onSensorChanged(int type, long timestamp, float[] values,
+			long time) {
+
+		switch (type) {
+			case Sensor.TYPE_ACCELEROMETER:
+				fusion.setAccelerometer(values);
+				updateOrientation(timestamp, false);
+
+				if (hardwareSteps)
+					return false;
+
+				return updateMeter(values[0], values[1], values[2] - 9.8f,
+						timestamp, time);
+
+			case Sensor.TYPE_MAGNETIC_FIELD:
+				fusion.setMagneticField(values);
+				updateOrientation(timestamp, false);
+				return false;
+
+			case Sensor.TYPE_GYROSCOPE:
+				fusion.setGyroscope(values, timestamp);
+				updateOrientation(timestamp, false);
+				return false;
+
+			case Sensor.TYPE_STEP_DETECTOR:
+				if (hardwareSteps)
+					onStep(timestamp, time);
+				return false;
+
+			case Sensor.TYPE_STEP_COUNTER:
+				if (!hardwareSteps)
+					return false;
+
+				long counter = (long) values[0];
+				if (stepCounter < 0)
+					stepCounter = counter;
+
+				for (; stepCounter < counter; stepCounter++)
+					onStep(timestamp, time);
+				return false;
+		}
+
+		return false;
+	}
+
+	/**
+	 * run an accelerometer sample through the software step detection
+	 */
+	private boolean updateMeter(float x, float y, float z, long timestamp,
+			long time) {
+
+		if (batching)
+			return addToBatch(x, y, z, timestamp, time);
+
+		meter.setXdat(x);
+		meter.setYdat(y);
+		meter.setZdat(z);
+		meter.setTimestamp(timestamp);
+
+		meter.update();
+
+		if (meter.isStepChanged()) {
+			onStep(timestamp, time);
+		}
+
+		return false;
+	}
+
+	/**
+	 * collect an accelerometer sample of a batch, the batch is processed
+	 * right away when the buffer is full
+	 */
+	private boolean addToBatch(float x, float y, float z, long timestamp,
+			long time) {
+		boolean started = batchCount == 0;
+
+		batchX[batchCount] = x;
+		batchY[batchCount] = y;
+		batchZ[batchCount] = z;
+		batchTimestamps[batchCount] = timestamp;
+		batchOrientations[batchCount] = orientation;
+		batchCount++;
+
+		if (batchCount == BATCH_SIZE)
+			processBatch(time);
+
+		return started;
+	}
+
+	/**
+	 * run the collected samples through the Pedometer in one call and log a
+	 * location for every step found, each with the timestamp and the
+	 * heading of its own sample
+	 *
+	 * @param time
+	 *            the time in milliseconds of the last sample, the steps
+	 *            before it are logged that much earlier
+	 */
+	public void processBatch(long time) {
+		int count = batchCount;
+		batchCount = 0;
+		if (count == 0)
+			return;
+
+		int newSteps = meter.update(batchX, batchY, batchZ, batchTimestamps,
+				count, stepIndices);
+		if (newSteps == 0)
+			return;
+
+		long last = batchTimestamps[count - 1];
+
+		for (int i = 0; i < newSteps; i++) {
+			int index = stepIndices[i];
+			long timestamp = batchTimestamps[index];
+
+			orientation = batchOrientations[index];
+			step(timestamp, time - (last - timestamp) / 1000000L);
+		}
+
+		// back to the latest heading, also when it didn't change since it
+		// was computed last
+		updateOrientation(last, true);
+		orientation = fusion.getHeading();
+		publish();
+	}
+
+	/**
+	 * a step was taken, whether the Pedometer or the hardware found it
+	 *
+	 * @param timestamp
+	 *            the timestamp of the step in nanoseconds
+	 * @param time
+	 *            the time in milliseconds logged with the step
+	 */
+	public void onStep(long timestamp, long time) {
+		updateOrientation(timestamp, true);
+
+		step(timestamp, time);
+	}
+
+	/**
+	 * count a step in the direction of the current orientation
+	 */
+	private void step(long timestamp, long time) {
+		steps++;
+
+		convertToLocation(time);
+
+		publish();
+
+		// nothing is allocated while nobody listens
+		EventBus bus = EventBus.getInstance();
+		if (bus.hasSubscribers(EventBus.Step.class))
+			bus.publish(new EventBus.Step(steps, timestamp));
+	}
+
+	/**
+	 * take the heading from the latest accelerometer and magnetic field
+	 * values, on a step whenever they changed and otherwise at most once
+	 * every FusionState.HEADING_INTERVAL_NS so readers see it move
+	 */
+	private void updateOrientation(long timestamp, boolean step) {
+		boolean updated = step ? fusion.updateHeading(timestamp) : fusion
+				.updateHeadingCapped(timestamp);
+		if (!updated)
+			return;
+
+		orientation = fusion.getHeading();
+
+		StepTrace trace = meter.getTrace();
+		if (trace != null)
+			trace.orientation(timestamp, orientation);
+
+		// a step publishes once the location is updated too
+		if (!step)
+			publish();
+	}
+
+	/**
+	 * convert sensor values to Location values "Longitude/Latitude"
+	 */
+	public void convertToLocation(long time) {
+		if (positionFilter != null) {
+			fuseStep(time);
+			return;
+		}
+
+		distance += STEP_LENGTH;
+
+		DataLogger.getInstance().setCurrDistance(distance);
+
+		// without a heading there is no direction to move the location in
+		if (orientation == FusionState.UNKNOWN_HEADING)
+			return;
+
+		projector.setHeading(orientation);
+		projector.step(STEP_LENGTH);
+		latitude = projector.getLatitude();
+		longitude = projector.getLongitude();
+
+		DataLogger.getInstance().addLocation(longitude, latitude, time);
+	}
+
+	/**
+	 * move the fused position by a step and log where it is now, nothing is
+	 * logged before the first fix, nor before the first heading when the
+	 * step only adds to the distance
+	 */
+	private void fuseStep(long time) {
+		// a fix on the GPS thread waits, so the logged location is the one
+		// this step led to
+		synchronized (positionFilter) {
+			boolean hasHeading = orientation != FusionState.UNKNOWN_HEADING;
+			if (hasHeading)
+				positionFilter.step(STEP_LENGTH, orientation, time);
+			else
+				positionFilter.step(STEP_LENGTH, time);
+
+			distance = positionFilter.getDistance();
+			DataLogger.getInstance().setCurrDistance(distance);
+
+			if (!hasHeading || !positionFilter.hasPosition())
+				return;
+
+			latitude = positionFilter.getLatitude();
+			longitude = positionFilter.getLongitude();
+			DataLogger.getInstance().addLocation(longitude, latitude, time);
+		}
+	}
+
+	/**
+	 * publish the current state, only called on the thread feeding the
+	 * events
+	 */
+	private void publish() {
+		int next = sequence + 1;
+
+		sequence = next;
+		publishedSteps = steps;
+		publishedDistance = distance;
+		publishedOrientation = orientation;
+		publishedLatitude = latitude;
+		publishedLongitude = longitude;
+		sequence = next + 1;
+	}
+
+	/**
+	 * the state published last, safe to call from any thread, it retries
+	 * while a new state is being published
+	 */
+	public Snapshot getSnapshot() {
+		while (true) {
+			int before = sequence;
+
+			if ((before & 1) == 0) {
+				Snapshot snapshot = new Snapshot(before / 2, publishedSteps,
+						publishedDistance, publishedOrientation,
+						publishedLatitude, publishedLongitude);
+
+				if (sequence == before)
+					return snapshot;
+			}
+
+			Thread.yield();
+		}
+	}
+
+	/**
+	 * number of the state published last, safe to call from any thread
+	 */
+	public long getSequence() {
+		return sequence / 2;
+	}
+
+	public void setBatching(boolean batching) {
+		this.batching = batching;
+	}
+
+	/**
+	 * take the steps from the step detector or step counter sensor instead
+	 * of running the accelerometer through the Pedometer
+	 */
+	public void setHardwareSteps(boolean hardwareSteps) {
+		this.hardwareSteps = hardwareSteps;
+	}
+
+	public StepDetector getMeter() {
+		return meter;
+	}
+
+	/**
+	 * the current heading, the getters are for the thread feeding the
+	 * events, other threads take a snapshot
+	 */
+	public double getOrientation() {
+		return orientation;
+	}
+
+	public double getDistance() {
+		return distance;
+	}
+
+	public int getSteps() {
+		return steps;
+	}
+}
@@ -1,252 +1,632 @@
-package com.mjaber.pedometer.services;
-
-import com.mjaber.pedometer.Application;
-import com.mjaber.pedometer.Pedometer;
-import com.mjaber.pedometer.logger.DataLogger;
-
-import android.app.Service;
-import android.content.BroadcastReceiver;
-import android.content.Context;
-import android.content.Intent;
-import android.content.IntentFilter;
-import android.hardware.Sensor;
-import android.hardware.SensorEvent;
-import android.hardware.SensorEventListener;
-import android.hardware.SensorManager;
-import android.os.IBinder;
-import android.os.RemoteException;
-import android.util.Log;
-
-/**
- * 
- * @author Mustafa Jaber 'mstfajbr@gmail.com'
- *
- */
-public class DeadReckoningService extends Service implements
-		SensorEventListener {
-
-	// Debugging Tag
-	protected static final String TAG = "DeadReckoningService";
-
-	private SensorManager sensorManager;
-	private Sensor accelerometer;
-	private Sensor magneticField;
-
-	private Pedometer meter;
-
-	private BroadcastReceiver sensorSwitch;
-
-	private Intent sensorUpdateIntent;
-
-	private double orientation = -1.0;
-	private double distance = 0.0;
-	private int steps = 0;
-
-	/**
-	 * initialize the Sensor managers and broadcast receiver
-	 */
-	public void onCreate() {
-
-		Log.d(TAG, "Called onCreate");
-
-		super.onCreate();
-
-		meter = Pedometer.getInstance();
-
-		initializeSensors();
-
-		IntentFilter filter = new IntentFilter(Application.SENSORSWITCHID);
-		sensorSwitch = new SensorSwitchReceiver();
-		registerReceiver(sensorSwitch, filter);
-
-		sensorUpdateIntent = new Intent(Application.SENSORSUPDATEID);
-
-	}
-
-	private void initializeSensors() {
-		sensorManager = (SensorManager) getSystemService(Context.SENSOR_SERVICE);
-
-		if (sensorManager.getDefaultSensor(Sensor.TYPE_ACCELEROMETER) != null) {
-			accelerometer = sensorManager
-					.getDefaultSensor(Sensor.TYPE_ACCELEROMETER);
-			magneticField = sensorManager
-					.getDefaultSensor(Sensor.TYPE_MAGNETIC_FIELD);
-		}
-	}
-
-	public void onDestroy() {
-		super.onDestroy();
-
-		// unregister sensor manager and broadcast receivers
-		sensorManager.unregisterListener(this);
-		unregisterReceiver(sensorSwitch);
-
-		Log.d(TAG, "Called onDestroy");
-	}
-
-	private final IDeadReckoning.Stub mBinder = new IDeadReckoning.Stub() {
-
-		@Override
-		public double getOrientation() throws RemoteException {
-			return orientation;
-		}
-
-		@Override
-		public double getSteps() throws RemoteException {
-			return (double) steps;
-		}
-
-		@Override
-		public double getDistance() throws RemoteException {
-			return distance;
-		}
-
-		@Override
-		public double getAverageSpeed() throws RemoteException {
-			return distance
-					/ ((System.currentTimeMillis() - DataLogger.getInstance()
-							.getFirstTime()) / 1000.0);
-		}
-
-	};
-
-	@Override
-	public IBinder onBind(Intent intent) {
-		Log.d(TAG, "Called onBind");
-		return mBinder;
-	}
-
-	@Override
-	public void onSensorChanged(SensorEvent event) {
-		
-		float[] acc = new float[3];
-		float[] mag = new float[3];
-		float[] mOrientation = new float[3];
-		float[] mRotationM = new float[9];
-		float[] mRotationM2 = new float[9];
-		
-		switch (event.sensor.getType()) {
-			case Sensor.TYPE_ACCELEROMETER:
-				acc[0] = event.values[0];
-				acc[1] = event.values[1];
-				acc[2] = event.values[2] - 9.8f;
-				break;
-			case Sensor.TYPE_MAGNETIC_FIELD:
-				mag[0] = event.values[0];
-				mag[1] = event.values[1];
-				mag[2] = event.values[2];
-				break;
-		}
-
-		getOrientationMatrix(acc, mag, mOrientation, mRotationM, mRotationM2);
-
-		meter.setXdat(acc[0]);
-		meter.setYdat(acc[1]);
-		meter.setZdat(acc[2]);
-
-		orientation = Math.toDegrees(mOrientation[0]);
-
-		meter.update();
-
-		if (meter.isStepChanged()) {
-			convertToLocation();
-		}
-
-	}
-
-	private void getOrientationMatrix(float[] acc, float[] mag,
-			float[] mOrientation, float[] mRotationM, float[] mRotationM2) {
-		if (SensorManager.getRotationMatrix(mRotationM, null, acc, mag)) {
-			Log.d(TAG, "rotation Matrix exitosa");
-			SensorManager.remapCoordinateSystem(mRotationM,
-					SensorManager.AXIS_X, SensorManager.AXIS_Z, mRotationM2);
-			SensorManager.getOrientation(mRotationM, mOrientation);
-			Log.d(TAG, "Orientation" + Math.toDegrees(mOrientation[0]));
-		}
-	}
-
-	@Override
-	public void onAccuracyChanged(Sensor sensor, int accuracy) {
-	}
-
-	/**
-	 * convert sensor values to Location values "Longitude/Latitude"
-	 */
-	public void convertToLocation() {
-		double longitude = Double.MIN_VALUE;
-		double latitude = Double.MIN_VALUE;
-
-		distance += 0.75;
-		steps = meter.getSteps();
-
-		DataLogger.getInstance().setCurrDistance(distance);
-
-		latitude = 0.75 * Math.cos(orientation) * 0.000009
-				+ DataLogger.getInstance().getPrevLatitude();
-		longitude = 0.75 * Math.sin(orientation) * 0.0000136
-				+ DataLogger.getInstance().getPrevLongitude();
-
-		DataLogger.getInstance().addLocation(latitude, longitude,
-				java.lang.System.currentTimeMillis());
-
-		Log.d(TAG, "Called convertToLocation");
-	}
-
-	/**
-	 * Start the accelerometer and magneticField sensors
-	 */
-	public void startSensors() {
-		sensorManager.registerListener(this, accelerometer,
-				SensorManager.SENSOR_DELAY_UI);
-		sensorManager.registerListener(this, magneticField,
-				SensorManager.SENSOR_DELAY_UI);
-
-		Log.d(TAG, "Called startSensors");
-	}
-
-	/**
-	 * Stop the accelerometer and magneticField sensors
-	 */
-	public void stopSensors() {
-		sensorManager.unregisterListener(this);
-
-		Log.d(TAG, "Called stopSensors");
-	}
-
-	/**
-	 * Broadcast receiver to switch on/off the sensors, it gets called from the
-	 * GPS service
-	 */
-	private class SensorSwitchReceiver extends BroadcastReceiver {
-
-		@Override
-		public void onReceive(Context context, Intent intent) {
-
-			Log.d(TAG, "Called SensorSwitchReceiver/onReceive");
-
-			String sensorValue = intent.getExtras().getString(
-					Application.SENSOR);
-			if (sensorValue.equals(Application.START)) {
-				distance = DataLogger.getInstance().getCurrDistance();
-
-				meter.reset();
-
-				startSensors();
-
-				sensorUpdateIntent.putExtra(Application.SENSOR,
-						Application.ACCELEROMETER);
-				sendBroadcast(sensorUpdateIntent);
-
-			} else if (sensorValue.equals(Application.STOP)) {
-
-				stopSensors();
-
-				sensorUpdateIntent
-						.putExtra(Application.SENSOR, Application.GPS);
-				sendBroadcast(sensorUpdateIntent);
-			}
-
-		}
-
-	}
-}
+package com.mjaber.pedometer.services;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+
+import com.mjaber.pedometer.Application;
+import com.mjaber.pedometer.EventBus;
+import com.mjaber.pedometer.HandlerExecutor;
+import com.mjaber.pedometer.StepDetector;
+import com.mjaber.pedometer.StepTrace;
+import com.mjaber.pedometer.logger.DataLogger;
+import com.mjaber.pedometer.logger.RawSensorRecorder;
+
+import android.annotation.TargetApi;
+import android.app.Service;
+import android.content.Context;
+import android.content.Intent;
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+import android.hardware.SensorEventListener;
+import android.hardware.SensorManager;
+import android.os.Build;
+import android.os.Environment;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.IBinder;
+import android.os.RemoteException;
+import android.util.Log;
+
+/**
+ * 
+ * @author Mustafa Jaber 'mstfajbr@gmail.com'
+ *
+ */
+public class DeadReckoningService extends Service implements
+		SensorEventListener {
+
+	// Debugging Tag
+	protected static final String TAG = "DeadReckoningService";
+
+	private SensorManager sensorManager;
+	private Sensor accelerometer;
+	private Sensor magneticField;
+
+	// null unless the quaternion filter uses the gyroscope
+	private Sensor gyroscope;
+
+	// hardware step detector or step counter, null when the device has
+	// neither and the Pedometer counts the steps
+	private Sensor stepSensor;
+
+	private DeadReckoning deadReckoning;
+
+	private StepDetector meter;
+
+
+	// true when the sensors are registered with a max report latency
+	private boolean batching = false;
+
+	// true while the phone is still, only the accelerometer runs then and at
+	// a low rate
+	private boolean lowPower = false;
+
+	// handler of the thread processing the sensor events, the source
+	// changes are delivered there too
+	private Handler handler;
+
+	// thread processing the sensor events taken from the queue, null when
+	// they are processed where they are delivered
+	private HandlerThread sensorThread;
+
+	// samples waiting for the sensor thread
+	private SensorQueue queue;
+
+	// pushes the values to the registered listeners
+	private ListenerDispatcher listeners;
+
+	// sequence number of the state the listeners were told about last, only
+	// used on the sensor thread
+	private long notifiedSequence = -1;
+
+	// the values pushed last, only used on the thread of the dispatcher, a
+	// listener in this process is handed this instance and copies it
+	private final DeadReckoningSnapshot pushedSnapshot = new DeadReckoningSnapshot();
+
+	// true while a drain of the queue is posted and didn't start yet
+	private volatile boolean drainScheduled = false;
+
+	// processes the samples queued by onSensorChanged on the sensor thread
+	private final Runnable queueDrainer = new Runnable() {
+		@Override
+		public void run() {
+			// cleared before draining, samples queued from now on post a new
+			// drain or are seen by this one
+			drainScheduled = false;
+
+			queue.drain(sampleProcessor);
+		}
+	};
+
+	private final SensorQueue.Consumer sampleProcessor =
+			new SensorQueue.Consumer() {
+		@Override
+		public void onSample(int type, long timestamp, float[] values,
+				long time) {
+			processSample(type, timestamp, values, time);
+		}
+	};
+
+	// processes the collected samples once the sensor hub finished delivering
+	// its FIFO, events of one flush are dispatched before posted messages
+	private final Runnable batchProcessor = new Runnable() {
+		@Override
+		public void run() {
+			deadReckoning.processBatch(System.currentTimeMillis());
+
+			checkStillness();
+			notifyListeners();
+		}
+	};
+
+	/**
+	 * initialize the Sensor managers and broadcast receiver
+	 */
+	public void onCreate() {
+
+		Log.d(TAG, "Called onCreate");
+
+		super.onCreate();
+
+		deadReckoning = new DeadReckoning();
+		meter = deadReckoning.getMeter();
+		listeners = new ListenerDispatcher("DeadReckoningListeners", sender);
+
+		if (Application.SENSOR_THREAD) {
+			sensorThread = new HandlerThread("SensorProcessing");
+			sensorThread.start();
+			handler = new Handler(sensorThread.getLooper());
+			queue = new SensorQueue(Application.SENSOR_QUEUE_CAPACITY);
+		} else {
+			handler = new Handler();
+		}
+
+		initializeSensors();
+
+		if (Application.RAW_SENSOR_RECORDING)
+			RawSensorRecorder.getInstance().start(
+					new File(Environment.getExternalStorageDirectory()
+							.getAbsolutePath(), "PedometerLogger"));
+
+		EventBus.getInstance().subscribe(EventBus.SourceChanged.class,
+				sensorSwitch, new HandlerExecutor(handler));
+
+		// the steps are fused with the fixes all the time, on the thread the
+		// source changes would start them on
+		if (Application.POSITION_FUSION)
+			handler.post(new Runnable() {
+				@Override
+				public void run() {
+					deadReckoning.start();
+					startSensors();
+				}
+			});
+	}
+
+	private void initializeSensors() {
+		sensorManager = (SensorManager) getSystemService(Context.SENSOR_SERVICE);
+
+		if (sensorManager.getDefaultSensor(Sensor.TYPE_ACCELEROMETER) != null) {
+			accelerometer = sensorManager
+					.getDefaultSensor(Sensor.TYPE_ACCELEROMETER);
+			magneticField = sensorManager
+					.getDefaultSensor(Sensor.TYPE_MAGNETIC_FIELD);
+		}
+
+		if (Application.QUATERNION_ORIENTATION
+				&& Application.GYROSCOPE_ORIENTATION)
+			gyroscope = sensorManager.getDefaultSensor(Sensor.TYPE_GYROSCOPE);
+
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT
+				&& Application.HARDWARE_STEP_DETECTION)
+			stepSensor = getStepSensor();
+
+		deadReckoning.setHardwareSteps(stepSensor != null);
+	}
+
+	/**
+	 * the step detector reports every step as it happens, the step counter
+	 * only the total with some delay, so the detector is preferred
+	 */
+	@TargetApi(Build.VERSION_CODES.KITKAT)
+	private Sensor getStepSensor() {
+		Sensor sensor = sensorManager
+				.getDefaultSensor(Sensor.TYPE_STEP_DETECTOR);
+		if (sensor == null)
+			sensor = sensorManager.getDefaultSensor(Sensor.TYPE_STEP_COUNTER);
+		return sensor;
+	}
+
+	public void onDestroy() {
+		super.onDestroy();
+
+		// unregister sensor manager and the source changes
+		sensorManager.unregisterListener(this);
+		EventBus.getInstance().unsubscribe(sensorSwitch);
+
+		if (sensorThread != null)
+			sensorThread.quit();
+
+		listeners.kill();
+
+		RawSensorRecorder.getInstance().stop();
+
+		Log.d(TAG, "Called onDestroy");
+	}
+
+	/**
+	 * switches the sensors on and off when the PedometerService changes the
+	 * data source, on the sensor thread
+	 */
+	private final EventBus.Subscriber<EventBus.SourceChanged> sensorSwitch =
+			new EventBus.Subscriber<EventBus.SourceChanged>() {
+
+		@Override
+		public void onEvent(EventBus.SourceChanged event) {
+
+			Log.d(TAG, "Called sensorSwitch/onEvent");
+
+			// with the fusion the sensors keep running, only the data
+			// source shown changes
+			if (Application.POSITION_FUSION)
+				return;
+
+			if (event.getAction().equals(Application.START)) {
+				deadReckoning.start();
+				startSensors();
+			} else if (event.getAction().equals(Application.STOP)) {
+				stopSensors();
+			}
+		}
+	};
+
+	private final IDeadReckoning.Stub mBinder = new IDeadReckoning.Stub() {
+
+		@Override
+		public double getOrientation() throws RemoteException {
+			return deadReckoning.getSnapshot().getOrientation();
+		}
+
+		@Override
+		public double getSteps() throws RemoteException {
+			return (double) deadReckoning.getSnapshot().getSteps();
+		}
+
+		@Override
+		public double getDistance() throws RemoteException {
+			return deadReckoning.getSnapshot().getDistance();
+		}
+
+		@Override
+		public double getAverageSpeed() throws RemoteException {
+			return averageSpeed(deadReckoning.getSnapshot().getDistance(),
+					System.currentTimeMillis());
+		}
+
+		@Override
+		public void getSnapshot(DeadReckoningSnapshot snapshot)
+				throws RemoteException {
+			DeadReckoning.Snapshot state = deadReckoning.getSnapshot();
+			long now = System.currentTimeMillis();
+
+			snapshot.set(state, now, averageSpeed(state.getDistance(), now));
+		}
+
+		@Override
+		public void registerListener(IPedometerListener listener,
+				float maxRateHz) throws RemoteException {
+			listeners.register(listener, maxRateHz);
+		}
+
+		@Override
+		public void unregisterListener(IPedometerListener listener)
+				throws RemoteException {
+			listeners.unregister(listener);
+		}
+
+	};
+
+	/**
+	 * sends the current values to the listeners
+	 */
+	private final ListenerDispatcher.Sender sender = new ListenerDispatcher.Sender() {
+
+		@Override
+		public long prepare() {
+			DeadReckoning.Snapshot state = deadReckoning.getSnapshot();
+			long now = System.currentTimeMillis();
+
+			pushedSnapshot.set(state, now,
+					averageSpeed(state.getDistance(), now));
+			return pushedSnapshot.getSequence();
+		}
+
+		@Override
+		public void send(IPedometerListener listener) throws RemoteException {
+			listener.onDeadReckoningChanged(pushedSnapshot);
+		}
+	};
+
+	/**
+	 * meters per second since the first logged location
+	 */
+	private static double averageSpeed(double distance, long now) {
+		return distance
+				/ ((now - DataLogger.getInstance().getFirstTime()) / 1000.0);
+	}
+
+	@Override
+	public IBinder onBind(Intent intent) {
+		Log.d(TAG, "Called onBind");
+		return mBinder;
+	}
+
+	/**
+	 * Controls the step trace from the field through dumpsys, e.g.
+	 * "adb shell dumpsys activity service
+	 * com.mjaber.pedometer/.services.DeadReckoningService trace on". The
+	 * arguments are "trace on", "trace off" and "trace save", "queue" prints
+	 * the counters of the sensor queue, without arguments the trace is
+	 * printed.
+	 */
+	@Override
+	protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+
+		if (args.length > 0 && args[0].equals("queue")) {
+			dumpQueue(writer);
+			return;
+		}
+
+		if (args.length > 1 && args[0].equals("trace")) {
+			if (args[1].equals("on")) {
+				setTrace(new StepTrace());
+				writer.println("trace started");
+			} else if (args[1].equals("off")) {
+				setTrace(null);
+				writer.println("trace stopped");
+			} else if (args[1].equals("save")) {
+				saveTrace(writer);
+			}
+			return;
+		}
+
+		StepTrace trace = meter.getTrace();
+		if (trace == null) {
+			writer.println("trace is off");
+		} else {
+			trace.dump(writer);
+		}
+	}
+
+	/**
+	 * print the counters of the sensor queue
+	 */
+	private void dumpQueue(PrintWriter writer) {
+		if (queue == null) {
+			writer.println("sensor events are processed on delivery");
+			return;
+		}
+
+		writer.println("depth " + queue.getDepth() + "/" + queue.getCapacity()
+				+ ", max depth " + queue.getMaxDepth() + ", shed "
+				+ queue.getShed() + ", overflows " + queue.getOverflows());
+	}
+
+	/**
+	 * hand the trace to the Pedometer on the thread delivering the sensor
+	 * events
+	 */
+	private void setTrace(final StepTrace trace) {
+		handler.post(new Runnable() {
+			@Override
+			public void run() {
+				meter.setTrace(trace);
+			}
+		});
+	}
+
+	/**
+	 * write the binary trace records next to the GPX files
+	 */
+	private void saveTrace(PrintWriter writer) {
+		StepTrace trace = meter.getTrace();
+		if (trace == null) {
+			writer.println("trace is off");
+			return;
+		}
+
+		File dir = new File(Environment.getExternalStorageDirectory()
+				.getAbsolutePath(), "PedometerLogger");
+		if (!dir.exists())
+			dir.mkdir();
+
+		File file = new File(dir, "trace" + System.currentTimeMillis()
+				+ ".bin");
+		FileOutputStream out = null;
+		try {
+			out = new FileOutputStream(file);
+			trace.writeTo(out);
+			writer.println("trace saved to " + file.getAbsolutePath());
+		} catch (IOException e) {
+			writer.println("trace save failed: " + e.toString());
+		} finally {
+			if (out != null) {
+				try {
+					out.close();
+				} catch (IOException e) {
+					Log.e(TAG, "trace close failed: " + e.toString());
+				}
+			}
+		}
+	}
+
+	@Override
+	public void onSensorChanged(SensorEvent event) {
+
+		RawSensorRecorder recorder = RawSensorRecorder.getInstance();
+		if (recorder.isRecording()) {
+			// the step sensors deliver a single value
+			float[] values = event.values;
+			recorder.record(event.sensor.getType(), event.timestamp,
+					values[0], values.length > 1 ? values[1] : 0f,
+					values.length > 2 ? values[2] : 0f);
+		}
+		
+		if (queue == null) {
+			processSample(event.sensor.getType(), event.timestamp,
+					event.values, System.currentTimeMillis());
+			return;
+		}
+
+		// only copy the sample here, the sensor thread does the rest
+		if (queue.offer(event.sensor.getType(), event.timestamp,
+				event.values, System.currentTimeMillis())
+				&& !drainScheduled) {
+			drainScheduled = true;
+			handler.post(queueDrainer);
+		}
+	}
+
+	/**
+	 * run a sample through the dead reckoning, on the sensor thread
+	 */
+	private void processSample(int type, long timestamp, float[] values,
+			long time) {
+		if (deadReckoning.onSensorChanged(type, timestamp, values, time))
+			handler.post(batchProcessor);
+		else if (!batching)
+			checkStillness();
+
+		notifyListeners();
+	}
+
+	/**
+	 * tell the listeners when the dead reckoning published a new state, on
+	 * the sensor thread
+	 */
+	private void notifyListeners() {
+		long sequence = deadReckoning.getSequence();
+		if (sequence == notifiedSequence)
+			return;
+
+		notifiedSequence = sequence;
+		listeners.onChanged();
+	}
+
+	@Override
+	public void onAccuracyChanged(Sensor sensor, int accuracy) {
+	}
+
+	/**
+	 * Start the accelerometer and magneticField sensors, the samples are
+	 * batched in the sensor hub when the device supports it
+	 */
+	public void startSensors() {
+		lowPower = false;
+
+		registerSensors();
+
+		Log.d(TAG, "Called startSensors, batching: " + batching
+				+ ", hardware steps: " + (stepSensor != null));
+	}
+
+	private void registerSensors() {
+		if (stepSensor != null) {
+			registerStepSensor();
+			return;
+		}
+
+		batching = Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT
+				&& Application.SENSOR_BATCH_LATENCY_US > 0
+				&& hasSensorFifo(accelerometer);
+
+		deadReckoning.setBatching(batching);
+
+		if (batching) {
+			registerBatched(accelerometer, SensorManager.SENSOR_DELAY_UI);
+			registerBatched(magneticField, SensorManager.SENSOR_DELAY_UI);
+			if (gyroscope != null)
+				registerBatched(gyroscope, SensorManager.SENSOR_DELAY_UI);
+		} else {
+			sensorManager.registerListener(this, accelerometer,
+					SensorManager.SENSOR_DELAY_UI);
+			sensorManager.registerListener(this, magneticField,
+					SensorManager.SENSOR_DELAY_UI);
+			if (gyroscope != null)
+				sensorManager.registerListener(this, gyroscope,
+						SensorManager.SENSOR_DELAY_UI);
+		}
+	}
+
+	/**
+	 * Let the hardware count the steps. The accelerometer and magneticField
+	 * sensors only provide the heading taken at every step, so they run at a
+	 * low rate and everything is batched in the sensor hub when possible,
+	 * the CPU sleeps until a FIFO is flushed.
+	 */
+	@TargetApi(Build.VERSION_CODES.KITKAT)
+	private void registerStepSensor() {
+		batching = Application.SENSOR_BATCH_LATENCY_US > 0
+				&& hasSensorFifo(stepSensor);
+
+		// the Pedometer is not fed, there is nothing to collect
+		deadReckoning.setBatching(false);
+
+		if (batching) {
+			registerBatched(stepSensor, SensorManager.SENSOR_DELAY_NORMAL);
+			registerBatched(accelerometer, SensorManager.SENSOR_DELAY_NORMAL);
+			registerBatched(magneticField, SensorManager.SENSOR_DELAY_NORMAL);
+			if (gyroscope != null)
+				registerBatched(gyroscope, SensorManager.SENSOR_DELAY_NORMAL);
+		} else {
+			sensorManager.registerListener(this, stepSensor,
+					SensorManager.SENSOR_DELAY_NORMAL);
+			sensorManager.registerListener(this, accelerometer,
+					SensorManager.SENSOR_DELAY_NORMAL);
+			sensorManager.registerListener(this, magneticField,
+					SensorManager.SENSOR_DELAY_NORMAL);
+			if (gyroscope != null)
+				sensorManager.registerListener(this, gyroscope,
+						SensorManager.SENSOR_DELAY_NORMAL);
+		}
+	}
+
+	/**
+	 * Unregister the magneticField sensor and slow the accelerometer down
+	 * while the phone is still, and go back to full rate as soon as it moves
+	 * again. The slow accelerometer is not batched, so the first sample of a
+	 * movement arrives within 200 milliseconds, before the step is over. Only
+	 * the sensors that change are registered again, and the step detector is
+	 * told about every change of the rate.
+	 */
+	private void checkStillness() {
+		// the Pedometer doesn't see the accelerometer with hardware steps
+		if (stepSensor != null || meter.isStill() == lowPower)
+			return;
+
+		lowPower = !lowPower;
+
+		// a registered sensor keeps its rate, the accelerometer has to be
+		// registered again
+		sensorManager.unregisterListener(this, accelerometer);
+
+		if (lowPower) {
+			sensorManager.unregisterListener(this, magneticField);
+			if (gyroscope != null)
+				sensorManager.unregisterListener(this, gyroscope);
+
+			handler.removeCallbacks(batchProcessor);
+			deadReckoning.processBatch(System.currentTimeMillis());
+
+			batching = false;
+			deadReckoning.setBatching(false);
+
+			sensorManager.registerListener(this, accelerometer,
+					SensorManager.SENSOR_DELAY_NORMAL);
+		} else {
+			registerSensors();
+		}
+
+		// the accelerometer runs at another rate now
+		meter.onRateChanged();
+
+		if (Application.POSITION_FUSION)
+			PositionFilter.getInstance().setStill(lowPower);
+
+		Log.d(TAG, "Called checkStillness, still: " + lowPower);
+	}
+
+	@TargetApi(Build.VERSION_CODES.KITKAT)
+	private boolean hasSensorFifo(Sensor sensor) {
+		return sensor.getFifoMaxEventCount() > 0;
+	}
+
+	@TargetApi(Build.VERSION_CODES.KITKAT)
+	private void registerBatched(Sensor sensor, int rate) {
+		sensorManager.registerListener(this, sensor, rate,
+				Application.SENSOR_BATCH_LATENCY_US);
+	}
+
+	/**
+	 * Stop the accelerometer and magneticField sensors
+	 */
+	public void stopSensors() {
+		sensorManager.unregisterListener(this);
+		lowPower = false;
+
+		if (Application.POSITION_FUSION)
+			PositionFilter.getInstance().setStill(false);
+
+		// don't lose the steps of queued samples and of a batch that was
+		// not processed yet
+		if (queue != null)
+			queue.drain(sampleProcessor);
+		handler.removeCallbacks(batchProcessor);
+		deadReckoning.processBatch(System.currentTimeMillis());
+
+		Log.d(TAG, "Called stopSensors");
+	}
+}
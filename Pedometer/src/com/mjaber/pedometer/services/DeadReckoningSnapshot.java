@@ -0,0 +1,137 @@
+package com.mjaber.pedometer.services;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+/**
+ * All the values of {@link IDeadReckoning} at one point in time, fetched
+ * with a single binder call into an instance the client keeps, like
+ * {@link PedometerSnapshot}.
+ *
+ * @author Mustafa Jaber 'mstfajbr@gmail.com'
+ *
+ */
+public class DeadReckoningSnapshot implements Parcelable {
+
+	// -1 until the first call filled the instance
+	private long sequence = -1;
+
+	// time the snapshot was taken, System.currentTimeMillis() of the service
+	private long timestamp;
+
+	private int steps;
+	private double distance;
+	private double orientation;
+	private double averageSpeed;
+	private double latitude;
+	private double longitude;
+
+	public static final Parcelable.Creator<DeadReckoningSnapshot> CREATOR = new Parcelable.Creator<DeadReckoningSnapshot>() {
+
+		@Override
+		public DeadReckoningSnapshot createFromParcel(Parcel in) {
+			DeadReckoningSnapshot snapshot = new DeadReckoningSnapshot();
+			snapshot.readFromParcel(in);
+			return snapshot;
+		}
+
+		@Override
+		public DeadReckoningSnapshot[] newArray(int size) {
+			return new DeadReckoningSnapshot[size];
+		}
+	};
+
+	/**
+	 * take the values of the dead reckoning, called by the service
+	 */
+	void set(DeadReckoning.Snapshot state, long timestamp,
+			double averageSpeed) {
+		this.sequence = state.getSequence();
+		this.timestamp = timestamp;
+		this.steps = state.getSteps();
+		this.distance = state.getDistance();
+		this.orientation = state.getOrientation();
+		this.averageSpeed = averageSpeed;
+		this.latitude = state.getLatitude();
+		this.longitude = state.getLongitude();
+	}
+
+	/**
+	 * overwrite the values with the ones of another snapshot, like
+	 * {@link PedometerSnapshot#copyFrom(PedometerSnapshot)}
+	 */
+	public void copyFrom(DeadReckoningSnapshot other) {
+		sequence = other.sequence;
+		timestamp = other.timestamp;
+		steps = other.steps;
+		distance = other.distance;
+		orientation = other.orientation;
+		averageSpeed = other.averageSpeed;
+		latitude = other.latitude;
+		longitude = other.longitude;
+	}
+
+	@Override
+	public int describeContents() {
+		return 0;
+	}
+
+	@Override
+	public void writeToParcel(Parcel out, int flags) {
+		out.writeLong(sequence);
+		out.writeLong(timestamp);
+		out.writeInt(steps);
+		out.writeDouble(distance);
+		out.writeDouble(orientation);
+		out.writeDouble(averageSpeed);
+		out.writeDouble(latitude);
+		out.writeDouble(longitude);
+	}
+
+	/**
+	 * overwrite the values with the ones in the parcel, called by the proxy
+	 * for the out parameter
+	 */
+	public void readFromParcel(Parcel in) {
+		sequence = in.readLong();
+		timestamp = in.readLong();
+		steps = in.readInt();
+		distance = in.readDouble();
+		orientation = in.readDouble();
+		averageSpeed = in.readDouble();
+		latitude = in.readDouble();
+		longitude = in.readDouble();
+	}
+
+	public long getSequence() {
+		return sequence;
+	}
+
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	public int getSteps() {
+		return steps;
+	}
+
+	public double getDistance() {
+		return distance;
+	}
+
+	public double getOrientation() {
+		return orientation;
+	}
+
+	public double getAverageSpeed() {
+		return averageSpeed;
+	}
+
+	public double getLatitude() {
+		return latitude;
+	}
+
+	public double getLongitude() {
+		return longitude;
+	}
+}
@@ -0,0 +1,115 @@
+package com.mjaber.pedometer.services;
+
+/**
+ * Local east-north-up frame anchored at a GPS fix. Steps are accumulated in
+ * meters relative to the anchor, and only turned into latitude and longitude
+ * when a position is read. The meters per degree are computed once per
+ * anchor and the sine and cosine once per heading, so a step costs two
+ * multiply-adds, and long stretches don't lose precision adding tiny degree
+ * offsets to big coordinates.
+ *
+ * @author Mustafa Jaber 'mstfajbr@gmail.com'
+ *
+ */
+public final class EnuProjector {
+
+	private double anchorLatitude;
+	private double anchorLongitude;
+
+	// meters per degree of latitude and longitude at the anchor, WGS84
+	private double metersPerDegreeLatitude = 111132.92;
+	private double metersPerDegreeLongitude = 111412.84;
+
+	// position relative to the anchor in meters
+	private double east;
+	private double north;
+
+	// heading in degrees and its sine and cosine
+	private double heading = Double.NaN;
+	private double sinHeading;
+	private double cosHeading;
+
+	/**
+	 * put the origin of the frame at the given position
+	 */
+	public void anchor(double latitude, double longitude) {
+		anchorLatitude = latitude;
+		anchorLongitude = longitude;
+		east = 0.0;
+		north = 0.0;
+
+		double phi = Math.toRadians(latitude);
+		metersPerDegreeLatitude = 111132.92 - 559.82 * Math.cos(2 * phi)
+				+ 1.175 * Math.cos(4 * phi);
+		metersPerDegreeLongitude = 111412.84 * Math.cos(phi) - 93.5
+				* Math.cos(3 * phi);
+	}
+
+	/**
+	 * @param heading
+	 *            the direction of the following steps in degrees, clockwise
+	 *            from north
+	 */
+	public void setHeading(double heading) {
+		if (heading == this.heading)
+			return;
+
+		this.heading = heading;
+
+		double radians = Math.toRadians(heading);
+		sinHeading = Math.sin(radians);
+		cosHeading = Math.cos(radians);
+	}
+
+	/**
+	 * move by length meters along the heading
+	 */
+	public void step(double length) {
+		east += length * sinHeading;
+		north += length * cosHeading;
+	}
+
+	public double getLatitude() {
+		return toLatitude(north);
+	}
+
+	public double getLongitude() {
+		return toLongitude(east);
+	}
+
+	/**
+	 * latitude of a point the given meters north of the anchor
+	 */
+	public double toLatitude(double north) {
+		return anchorLatitude + north / metersPerDegreeLatitude;
+	}
+
+	/**
+	 * longitude of a point the given meters east of the anchor
+	 */
+	public double toLongitude(double east) {
+		return anchorLongitude + east / metersPerDegreeLongitude;
+	}
+
+	/**
+	 * meters north of the anchor of a latitude
+	 */
+	public double toNorth(double latitude) {
+		return (latitude - anchorLatitude) * metersPerDegreeLatitude;
+	}
+
+	/**
+	 * meters east of the anchor of a longitude
+	 */
+	public double toEast(double longitude) {
+		return (longitude - anchorLongitude) * metersPerDegreeLongitude;
+	}
+
+	public double getEast() {
+		return east;
+	}
+
+	public double getNorth() {
+		return north;
+	}
+}
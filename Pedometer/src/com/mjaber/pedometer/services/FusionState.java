@@ -0,0 +1,136 @@
+package com.mjaber.pedometer.services;
+
+import com.mjaber.pedometer.Application;
+
+/**
+ * Latest accelerometer and magnetic field readings and the heading derived
+ * from them. The readings are only copied when an event arrives, the
+ * rotation matrix is computed when the heading is asked for and the readings
+ * changed since the last time. Nothing is allocated after construction.
+ *
+ * With Application.QUATERNION_ORIENTATION the heading comes from an
+ * {@link OrientationFilter} instead, corrected at the same points and
+ * rotated by every gyroscope sample.
+ *
+ * @author Mustafa Jaber 'mstfajbr@gmail.com'
+ *
+ */
+final class FusionState {
+
+	// minimum time between two headings computed for the readers between
+	// steps, in nanoseconds
+	static final long HEADING_INTERVAL_NS = 200 * 1000000L;
+
+	private final float[] gravity = new float[3];
+	private final float[] geomagnetic = new float[3];
+
+	private final float[] rotation = new float[9];
+	private final float[] orientation = new float[3];
+
+	// null when the heading comes from the rotation matrix
+	private final OrientationFilter filter = Application.QUATERNION_ORIENTATION
+			? new OrientationFilter()
+			: null;
+
+	// timestamps of the last gyroscope sample and the last correction of
+	// the filter, -1 before the first
+	private long gyroscopeTimestamp = -1;
+	private long correctionTimestamp = -1;
+
+	// true when a reading arrived after the heading was computed
+	private boolean changed = false;
+
+	// both sensors delivered at least once
+	private boolean hasGravity = false;
+	private boolean hasGeomagnetic = false;
+
+	// heading in degrees from -180 to 180, UNKNOWN_HEADING until the first
+	// one could be computed
+	static final double UNKNOWN_HEADING = -1.0;
+	private double heading = UNKNOWN_HEADING;
+
+	// timestamp of the reading the heading was computed at, set one interval
+	// before the sensor clock starts so the first reading gets one
+	private long headingTimestamp = -HEADING_INTERVAL_NS;
+
+	void setAccelerometer(float[] values) {
+		gravity[0] = values[0];
+		gravity[1] = values[1];
+		gravity[2] = values[2];
+		hasGravity = true;
+		changed = true;
+	}
+
+	void setMagneticField(float[] values) {
+		geomagnetic[0] = values[0];
+		geomagnetic[1] = values[1];
+		geomagnetic[2] = values[2];
+		hasGeomagnetic = true;
+		changed = true;
+	}
+
+	/**
+	 * rotate the filter by a gyroscope sample, ignored without the filter
+	 */
+	void setGyroscope(float[] values, long timestamp) {
+		if (filter == null)
+			return;
+
+		if (gyroscopeTimestamp >= 0)
+			filter.rotate(values[0], values[1], values[2],
+					(timestamp - gyroscopeTimestamp) * 1e-9f);
+		gyroscopeTimestamp = timestamp;
+		changed = true;
+	}
+
+	/**
+	 * compute the heading if the readings changed since the last one
+	 *
+	 * @return true when a new heading was computed
+	 */
+	boolean updateHeading(long timestamp) {
+		if (!changed || !hasGravity || !hasGeomagnetic)
+			return false;
+
+		changed = false;
+
+		if (filter != null) {
+			float dt = correctionTimestamp >= 0
+					? (timestamp - correctionTimestamp) * 1e-9f
+					: 0.0f;
+
+			// the last heading is kept while the orientation is undefined
+			if (!filter.correct(gravity, geomagnetic, dt))
+				return false;
+
+			correctionTimestamp = timestamp;
+			heading = Math.toDegrees(filter.getHeading());
+		} else {
+			// the last heading is kept while the rotation is undefined
+			if (!OrientationMath.getRotationMatrix(rotation, gravity,
+					geomagnetic))
+				return false;
+
+			OrientationMath.getOrientation(rotation, orientation);
+			heading = Math.toDegrees(orientation[0]);
+		}
+
+		headingTimestamp = timestamp;
+
+		return true;
+	}
+
+	/**
+	 * like updateHeading(), but only once every HEADING_INTERVAL_NS
+	 */
+	boolean updateHeadingCapped(long timestamp) {
+		if (timestamp - headingTimestamp < HEADING_INTERVAL_NS)
+			return false;
+
+		return updateHeading(timestamp);
+	}
+
+	double getHeading() {
+		return heading;
+	}
+}
@@ -0,0 +1,204 @@
+package com.mjaber.pedometer.services;
+
+import com.mjaber.pedometer.Application;
+
+/**
+ * Decides how often {@link PedometerService} asks for GPS fixes. Between the
+ * fixes the {@link PositionFilter} carries the position with the steps, so
+ * fixes are only wanted as often as the steps can't be trusted on their own:
+ * every second while moving fast or turning, every few seconds while walking
+ * with a precise fused position, rarely while still, and less and less often
+ * while the fixes are too poor to help anyway.
+ *
+ * The movement is judged on the steps alone and on the speed the fixes
+ * report, never on the fused distance: with no steps the corrections of the
+ * fixes add to it, and their jitter would read as walking.
+ *
+ * The interval is only changed when it changes significantly, and widened
+ * at most once every HOLD_MS, every change costs a new registration with
+ * the LocationManager. It is updated on every fix and on the steps, there
+ * is no timer: without steps and fixes nothing changes. Clock values are
+ * passed in, like in {@link GpsTracker}, all of them from the same clock.
+ *
+ * @author Mustafa Jaber 'mstfajbr@gmail.com'
+ *
+ */
+public class GpsIntervalController {
+
+	// interval while moving fast or turning, in milliseconds
+	public static final long MIN_INTERVAL_MS = Application.MIN_TIME_MS;
+
+	// interval while walking with a precise fused position
+	public static final long WALKING_INTERVAL_MS = 5000;
+
+	// interval while still
+	public static final long STILL_INTERVAL_MS = 30000;
+
+	// longest interval while backing off from poor fixes
+	public static final long MAX_INTERVAL_MS = 120000;
+
+	// speed in meters per second above which the steps alone can't be
+	// trusted, faster than walking
+	private static final double FAST_SPEED = 2.0;
+
+	// speed in meters per second reported by a fix below which the user
+	// may be still, it reads a few tenths standing
+	private static final float STILL_FIX_SPEED = 1.0f;
+
+	// time without a step in milliseconds after which the user is still
+	private static final long STILL_TIME_MS = 10000;
+
+	// shortest time in milliseconds the speed and the turn are measured
+	// over, a shorter one reads a single step as a sprint
+	private static final long MIN_WINDOW_MS = 3000;
+
+	// change of the heading in degrees that asks for fixes right away
+	private static final double TURN_DEGREES = 30;
+
+	// fused accuracy in meters up to which the steps carry the position
+	// between fixes
+	private static final float GOOD_ACCURACY = 10;
+
+	// poor fixes in a row before backing off
+	private static final int POOR_FIXES = 5;
+
+	// ratio between two intervals worth a new registration
+	private static final double SIGNIFICANT_CHANGE = 1.5;
+
+	// minimum time in milliseconds between two registrations widening the
+	// interval, a narrower one is registered right away
+	private static final long HOLD_MS = 15000;
+
+	private final PositionFilter positionFilter;
+
+	// the interval registered last
+	private long interval = MIN_INTERVAL_MS;
+
+	// time of the last registration in milliseconds
+	private long registrationTime = 0;
+
+	// fixes worse than GpsTracker.MAX_ACCURACY in a row
+	private int poorFixes = 0;
+
+	// interval while backing off, doubled on every poor fix
+	private long backOffInterval = WALKING_INTERVAL_MS;
+
+	// time of the last step in milliseconds, -1 before the first
+	private long lastStepTime = -1;
+
+	// speed reported by the last accurate fix in meters per second, 0 when
+	// it had none
+	private float fixSpeed = 0;
+
+	// distance of the steps, heading and time at the start of the window,
+	// the time is -1 before the first update
+	private double lastDistance;
+	private double lastHeading;
+	private long lastTime = -1;
+
+	public GpsIntervalController(PositionFilter positionFilter) {
+		this.positionFilter = positionFilter;
+	}
+
+	/**
+	 * count the poor fixes, a good one ends the back off
+	 *
+	 * @param speed
+	 *            the speed of the fix in meters per second, negative when it
+	 *            has none
+	 */
+	public void onFix(float accuracy, float speed) {
+		if (accuracy <= 0 || accuracy >= GpsTracker.MAX_ACCURACY) {
+			// the fixes don't help, double the interval on every poor fix
+			// until a good one comes in
+			if (++poorFixes >= POOR_FIXES)
+				backOffInterval = Math.min(MAX_INTERVAL_MS,
+						Math.max(WALKING_INTERVAL_MS, interval * 2));
+			fixSpeed = 0;
+		} else {
+			poorFixes = 0;
+			fixSpeed = Math.max(0, speed);
+		}
+	}
+
+	/**
+	 * the dead reckoning counted a step
+	 *
+	 * @param now
+	 *            the current time in milliseconds
+	 */
+	public void onStep(long now) {
+		lastStepTime = now;
+	}
+
+	/**
+	 * compute the interval for the current movement
+	 *
+	 * @param now
+	 *            the current time in milliseconds
+	 * @return true when the interval changed and has to be registered
+	 */
+	public boolean update(long now) {
+		double distance = positionFilter.getStepDistance();
+		double heading = positionFilter.getHeading();
+
+		double speed = 0.0;
+		double turn = 0.0;
+		long window = now - lastTime;
+		if (lastTime >= 0 && window > 0) {
+			speed = (distance - lastDistance) * 1000.0
+					/ Math.max(window, MIN_WINDOW_MS);
+			turn = Math.abs((heading - lastHeading + 540.0) % 360.0 - 180.0);
+		}
+
+		// the window starts over once it is long enough
+		if (lastTime < 0 || window >= MIN_WINDOW_MS) {
+			lastDistance = distance;
+			lastHeading = heading;
+			lastTime = now;
+		}
+
+		// still when the steps stopped and the fixes don't report a ride
+		boolean walking = lastStepTime >= 0
+				&& now - lastStepTime <= STILL_TIME_MS;
+		boolean still = !walking && fixSpeed < STILL_FIX_SPEED;
+
+		long target;
+		if (poorFixes >= POOR_FIXES) {
+			target = backOffInterval;
+		} else if (speed >= FAST_SPEED || fixSpeed >= FAST_SPEED
+				|| turn >= TURN_DEGREES) {
+			target = MIN_INTERVAL_MS;
+		} else if (still) {
+			target = STILL_INTERVAL_MS;
+		} else if (positionFilter.hasPosition()
+				&& positionFilter.getAccuracy() <= GOOD_ACCURACY) {
+			target = WALKING_INTERVAL_MS;
+		} else {
+			target = MIN_INTERVAL_MS;
+		}
+
+		if (!isSignificant(target, now))
+			return false;
+
+		interval = target;
+		registrationTime = now;
+
+		return true;
+	}
+
+	private boolean isSignificant(long target, long now) {
+		if (target > interval)
+			return target >= interval * SIGNIFICANT_CHANGE
+					&& now - registrationTime >= HOLD_MS;
+
+		return target * SIGNIFICANT_CHANGE <= interval;
+	}
+
+	/**
+	 * the interval registered last in milliseconds
+	 */
+	public long getInterval() {
+		return interval;
+	}
+}
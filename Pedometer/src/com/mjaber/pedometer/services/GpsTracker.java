@@ -0,0 +1,485 @@
+package com.mjaber.pedometer.services;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.mjaber.pedometer.Application;
+import com.mjaber.pedometer.GeoMath;
+import com.mjaber.pedometer.logger.DataLogger;
+
+/**
+ * The GPS side of {@link PedometerService} without the Android service around
+ * it: it filters the fixes by accuracy and sums up the distance, while a
+ * {@link SensorArbiter} decides when to hand over to the accelerometer.
+ * Clock values are passed in, so the same code runs in the service and in an
+ * offline replay.
+ *
+ * With Application.POSITION_FUSION every fix good enough to be fused
+ * corrects the {@link PositionFilter}, which logs the track and measures the
+ * distance, the switch decisions only tell which source dominates.
+ *
+ * The fixes come in on one thread. After every change the state is
+ * published as an immutable {@link Snapshot}, and the getters only read the
+ * last one, so binder threads can call them at any time without a lock.
+ * getPosition(Position) takes the position and the distance of the same
+ * update, from the fused position or the logged track where they change
+ * between the fixes.
+ *
+ * @author Mustafa Jaber 'mstfajbr@gmail.com'
+ *
+ */
+public class GpsTracker {
+
+	/**
+	 * Receives the decisions to switch between GPS and ACCELEROMETER
+	 */
+	public interface SensorSwitch {
+
+		/**
+		 * @param sensor
+		 *            the new data source, Application.GPS or
+		 *            Application.ACCELEROMETER
+		 * @param action
+		 *            Application.START or Application.STOP for the sensors of
+		 *            the dead reckoning
+		 */
+		void switchSensor(String sensor, String action);
+	}
+
+	/**
+	 * The state of the tracker at one point in time
+	 */
+	public static final class Snapshot {
+
+		private final long sequence;
+		private final double latitude;
+		private final double longitude;
+		private final double distance;
+		private final double averageSpeed;
+		private final float accuracy;
+		private final String sensor;
+
+		Snapshot(long sequence, double latitude, double longitude,
+				double distance, double averageSpeed, float accuracy,
+				String sensor) {
+			this.sequence = sequence;
+			this.latitude = latitude;
+			this.longitude = longitude;
+			this.distance = distance;
+			this.averageSpeed = averageSpeed;
+			this.accuracy = accuracy;
+			this.sensor = sensor;
+		}
+
+		/**
+		 * number of the snapshot, counted up on every publish
+		 */
+		public long getSequence() {
+			return sequence;
+		}
+
+		/**
+		 * latitude of the last accurate fix, 0 without one
+		 */
+		public double getLatitude() {
+			return latitude;
+		}
+
+		/**
+		 * longitude of the last accurate fix, 0 without one
+		 */
+		public double getLongitude() {
+			return longitude;
+		}
+
+		public double getDistance() {
+			return distance;
+		}
+
+		public double getAverageSpeed() {
+			return averageSpeed;
+		}
+
+		public float getAccuracy() {
+			return accuracy;
+		}
+
+		public String getSensor() {
+			return sensor;
+		}
+	}
+
+	/**
+	 * The position of the current data source and the distance, taken
+	 * together. The caller keeps the instance and has it filled again.
+	 */
+	public static final class Position {
+
+		// filled from the logged track while the accelerometer is the source
+		private final DataLogger.LastLocation lastLocation =
+				new DataLogger.LastLocation();
+
+		private Snapshot snapshot;
+		private long sequence;
+		double latitude;
+		double longitude;
+		double distance;
+
+		/**
+		 * the snapshot the other values were taken with
+		 */
+		public Snapshot getSnapshot() {
+			return snapshot;
+		}
+
+		/**
+		 * changes whenever any of the values may have
+		 */
+		public long getSequence() {
+			return sequence;
+		}
+
+		/**
+		 * 0 without a position
+		 */
+		public double getLatitude() {
+			return latitude;
+		}
+
+		/**
+		 * 0 without a position
+		 */
+		public double getLongitude() {
+			return longitude;
+		}
+
+		public double getDistance() {
+			return distance;
+		}
+	}
+
+	// fixes with a worse accuracy in meters are ignored
+	public static final float MAX_ACCURACY = 12;
+
+	// fixes with a worse accuracy in meters are not fused either
+	public static final float MAX_FUSED_ACCURACY = 50;
+
+	// time without an accurate fix before switching to the accelerometer
+	public static final long GPS_TIMEOUT_MS = 5000;
+
+	private final SensorSwitch sensorSwitch;
+
+	private final PositionFilter positionFilter = PositionFilter.getInstance();
+
+	private double latitude;
+	private double longitude;
+
+	// distance walked, the hops between the fixes added with compensation
+	private final GeoMath.Odometer odometer = new GeoMath.Odometer();
+
+	// accuracy of the GPS signal
+	private float GPSAccuracy = 0;
+
+	// to indicate if we got a location at all
+	private boolean hasLocation = false;
+
+	// to indicate if we got the first GPS reading
+	private boolean receivedFirstGPSReading = false;
+
+	// logs the time of the last position value
+	private long lastOnLocationUpdateTime = 0;
+
+	// indicates whether the current sensor is GPS or ACCELEROMETER
+	private String currentSensor = Application.GPS;
+
+	// the state published last
+	private final AtomicReference<Snapshot> snapshot =
+			new AtomicReference<Snapshot>();
+
+	public GpsTracker(SensorSwitch sensorSwitch) {
+		this.sensorSwitch = sensorSwitch;
+
+		publish();
+	}
+
+	/**
+	 * start from a last known location
+	 */
+	public void setLastKnownLocation(double latitude, double longitude,
+			float accuracy) {
+		this.latitude = latitude;
+		this.longitude = longitude;
+		GPSAccuracy = accuracy;
+		hasLocation = true;
+
+		odometer.moveTo(latitude, longitude);
+		if (Application.POSITION_FUSION)
+			positionFilter.setStart(latitude, longitude, accuracy);
+
+		publish();
+	}
+
+	/**
+	 * Called when a new location is sensed by the location provider.
+	 *
+	 * @param time
+	 *            the time of the fix in milliseconds
+	 * @param now
+	 *            the current time in milliseconds
+	 */
+	public void onLocationChanged(double latitude, double longitude,
+			double altitude, float accuracy, long time, long now) {
+		GPSAccuracy = accuracy;
+
+		if (Application.POSITION_FUSION)
+			fuse(latitude, longitude, altitude, accuracy, time, now);
+
+		// Only if the accuracy is better than 12 meters log records on the
+		// ListOfLocations, and only while the GPS is the data source
+		if (!isAccurate(accuracy) || currentSensor != Application.GPS) {
+			publish();
+			return;
+		}
+
+		updateValues(latitude, longitude, altitude, time, now);
+
+		// If is the first time we get a measurement with enough accuracy
+		if (!receivedFirstGPSReading) {
+			DataLogger.getInstance().setFirstTime(time);
+			receivedFirstGPSReading = true;
+		}
+
+		publish();
+	}
+
+	/**
+	 * true when a fix with the accuracy is good enough to be logged
+	 */
+	public static boolean isAccurate(float accuracy) {
+		return accuracy > 0 && accuracy < MAX_ACCURACY;
+	}
+
+	private void updateValues(double latitude, double longitude,
+			double altitude, long time, long now) {
+		this.latitude = latitude;
+		this.longitude = longitude;
+		hasLocation = true;
+		lastOnLocationUpdateTime = now;
+
+		// the fused position was logged already
+		if (Application.POSITION_FUSION)
+			return;
+
+		// check the distance against previous point, nothing is added for
+		// the first one
+		odometer.add(latitude, longitude);
+
+		DataLogger.getInstance().setCurrDistance(odometer.getTotal());
+		DataLogger.getInstance().addLocation(longitude, latitude, altitude,
+				time);
+	}
+
+	/**
+	 * correct the fused position with a fix and log where it is now
+	 */
+	private void fuse(double latitude, double longitude, double altitude,
+			float accuracy, long time, long now) {
+		if (accuracy <= 0 || accuracy >= MAX_FUSED_ACCURACY)
+			return;
+
+		// the steps of the sensor thread wait, so the logged location is
+		// the one this fix led to
+		synchronized (positionFilter) {
+			if (!positionFilter.fix(latitude, longitude, accuracy, now))
+				return;
+
+			DataLogger.getInstance().setCurrDistance(
+					positionFilter.getDistance());
+			DataLogger.getInstance().addLocation(
+					positionFilter.getLongitude(),
+					positionFilter.getLatitude(), altitude, time);
+		}
+	}
+
+	/**
+	 * hand the distance over to the dead reckoning, the fused distance is
+	 * shared anyway
+	 */
+	private void handOverDistance() {
+		if (!Application.POSITION_FUSION)
+			DataLogger.getInstance().setCurrDistance(odometer.getTotal());
+	}
+
+	/**
+	 * continue from the distance the dead reckoning handed over
+	 */
+	private void takeOverDistance() {
+		if (!Application.POSITION_FUSION)
+			odometer.setTotal(DataLogger.getInstance().getCurrDistance());
+	}
+
+	/**
+	 * make sensor the data source, called by the {@link SensorArbiter}
+	 */
+	public void setCurrentSensor(String sensor) {
+		if (sensor == currentSensor)
+			return;
+
+		if (sensor == Application.GPS) {
+			switchToGPS();
+			takeOverDistance();
+		} else {
+			handOverDistance();
+			switchToAccelerometer();
+		}
+
+		publish();
+	}
+
+	private void switchToGPS() {
+		switchSensor(Application.GPS, Application.STOP);
+	}
+
+	private void switchToAccelerometer() {
+		switchSensor(Application.ACCELEROMETER, Application.START);
+	}
+
+	private void switchSensor(String sensor, String action) {
+		sensorSwitch.switchSensor(sensor, action);
+		currentSensor = sensor;
+	}
+
+	/**
+	 * Returns Average Speed in meters/second
+	 */
+	private double computeAverageSpeed() {
+		double speed = 0.0;
+		double deltaTimeIn_MS = (double) lastOnLocationUpdateTime
+				- DataLogger.getInstance().getFirstTime();
+		double distance = getTotalDistance();
+		if (distance > 0 && deltaTimeIn_MS > 0) {
+			speed = distance / (deltaTimeIn_MS / 1000);
+		}
+		return speed;
+	}
+
+	/**
+	 * replace the published state, called by the thread delivering the fixes
+	 * after every change
+	 */
+	private void publish() {
+		Snapshot last = snapshot.get();
+		long sequence = last != null ? last.getSequence() + 1 : 0;
+
+		snapshot.set(new Snapshot(sequence, hasLocation ? latitude : 0,
+				hasLocation ? longitude : 0, getTotalDistance(),
+				computeAverageSpeed(), GPSAccuracy, currentSensor));
+	}
+
+	/**
+	 * the fused distance, or the distance of the fixes
+	 */
+	private double getTotalDistance() {
+		return Application.POSITION_FUSION ? positionFilter.getDistance()
+				: odometer.getTotal();
+	}
+
+	/**
+	 * the state published last, safe to call from any thread
+	 */
+	public Snapshot getSnapshot() {
+		return snapshot.get();
+	}
+
+	/**
+	 * fill the holder with the position of the current data source and the
+	 * distance, both of the same update. Safe to call from any thread, it
+	 * neither takes a lock nor allocates.
+	 */
+	public void getPosition(Position position) {
+		Snapshot state = snapshot.get();
+		position.snapshot = state;
+
+		if (Application.POSITION_FUSION) {
+			long updates = positionFilter.getPosition(position);
+			position.sequence = state.getSequence() + updates;
+			return;
+		}
+
+		position.sequence = state.getSequence();
+		position.distance = state.getDistance();
+
+		if (state.getSensor() == Application.GPS) {
+			position.latitude = state.getLatitude();
+			position.longitude = state.getLongitude();
+		} else {
+			// zeroed when nothing was logged
+			DataLogger.getInstance().getLastLocation(position.lastLocation);
+			position.latitude = position.lastLocation.getLatitude();
+			position.longitude = position.lastLocation.getLongitude();
+		}
+	}
+
+	/**
+	 * Returns Average Speed in meters/second
+	 */
+	public double averageSpeed() {
+		return snapshot.get().getAverageSpeed();
+	}
+
+	/**
+	 * latitude of the current data source
+	 */
+	public double getLatitude() {
+		if (Application.POSITION_FUSION)
+			return positionFilter.getLatitude();
+
+		Snapshot state = snapshot.get();
+		if (state.getSensor() == Application.GPS) {
+			return state.getLatitude();
+		} else {
+			// 0 when nothing was logged
+			return DataLogger.getInstance().getPrevLatitude();
+		}
+	}
+
+	/**
+	 * longitude of the current data source
+	 */
+	public double getLongitude() {
+		if (Application.POSITION_FUSION)
+			return positionFilter.getLongitude();
+
+		Snapshot state = snapshot.get();
+		if (state.getSensor() == Application.GPS) {
+			return state.getLongitude();
+		} else {
+			// 0 when nothing was logged
+			return DataLogger.getInstance().getPrevLongitude();
+		}
+	}
+
+	public double getDistance() {
+		if (Application.POSITION_FUSION)
+			return positionFilter.getDistance();
+
+		return snapshot.get().getDistance();
+	}
+
+	public float getAccuracy() {
+		return snapshot.get().getAccuracy();
+	}
+
+	/**
+	 * changes whenever any of the getters may return another value, with
+	 * fusion the steps move the position between the fixes too
+	 */
+	public long getSequence() {
+		long sequence = snapshot.get().getSequence();
+		return Application.POSITION_FUSION ? sequence
+				+ positionFilter.getUpdates() : sequence;
+	}
+
+	public String getCurrentSensor() {
+		return snapshot.get().getSensor();
+	}
+}
@@ -0,0 +1,212 @@
+package com.mjaber.pedometer.services;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.RemoteCallbackList;
+import android.os.RemoteException;
+import android.os.SystemClock;
+
+/**
+ * Pushes the values of a service to the registered
+ * {@link IPedometerListener} clients, each at most at the rate it asked for.
+ *
+ * The service calls onChanged() whenever its values changed, on any thread.
+ * That only posts a dispatch to the thread of the dispatcher, once until the
+ * dispatch ran, so a burst of changes is coalesced into one and the threads
+ * of the sensors and the fixes never wait for a client. The dispatch sends
+ * the current values to every client whose interval is over and arms one
+ * timer for the earliest of the others, which then get the values current
+ * at that time. The listener calls are oneway, a slow client only fills its
+ * own queue. Clients that died are dropped by the RemoteCallbackList.
+ *
+ * @author Mustafa Jaber 'mstfajbr@gmail.com'
+ *
+ */
+public class ListenerDispatcher {
+
+	/**
+	 * Sends the values of a service to the listeners, on the thread of the
+	 * dispatcher
+	 */
+	public interface Sender {
+
+		/**
+		 * take the current values, once per dispatch
+		 *
+		 * @return the sequence number of the values, a client already sent
+		 *         them is skipped
+		 */
+		long prepare();
+
+		/**
+		 * send the values taken last to a listener
+		 */
+		void send(IPedometerListener listener) throws RemoteException;
+	}
+
+	// highest rate a client can ask for, in updates per second
+	public static final float MAX_RATE_HZ = 50;
+
+	/**
+	 * The rate of a client and what it was sent last, only touched on the
+	 * thread of the dispatcher once registered
+	 */
+	private static final class Client {
+
+		// minimum time between two updates in milliseconds
+		final long interval;
+
+		// uptime of the last update, -1 before the first
+		long lastSent = -1;
+
+		// sequence number of the last update
+		long sequence = -1;
+
+		Client(long interval) {
+			this.interval = interval;
+		}
+	}
+
+	private final Sender sender;
+
+	// number of registered clients, the changes are ignored without any
+	private final AtomicInteger clients = new AtomicInteger();
+
+	private final RemoteCallbackList<IPedometerListener> listeners = new RemoteCallbackList<IPedometerListener>() {
+		@Override
+		public void onCallbackDied(IPedometerListener listener, Object cookie) {
+			clients.decrementAndGet();
+		}
+	};
+
+	private final HandlerThread thread;
+	private final Handler handler;
+
+	// true while a dispatch for a change is posted and didn't start yet
+	private final AtomicBoolean dispatchScheduled = new AtomicBoolean();
+
+	// dispatches a change
+	private final Runnable changeDispatch = new Runnable() {
+		@Override
+		public void run() {
+			// cleared before dispatching, changes from now on post a new
+			// dispatch or are seen by this one
+			dispatchScheduled.set(false);
+
+			dispatch();
+		}
+	};
+
+	// dispatches to the clients whose interval wasn't over at the last
+	// dispatch
+	private final Runnable deferredDispatch = new Runnable() {
+		@Override
+		public void run() {
+			dispatch();
+		}
+	};
+
+	/**
+	 * @param name
+	 *            name of the thread sending the updates
+	 */
+	public ListenerDispatcher(String name, Sender sender) {
+		this.sender = sender;
+
+		thread = new HandlerThread(name);
+		thread.start();
+		handler = new Handler(thread.getLooper());
+	}
+
+	/**
+	 * send updates to the listener, the current values right away
+	 *
+	 * @param maxRateHz
+	 *            updates per second the client wants at most, up to
+	 *            MAX_RATE_HZ
+	 */
+	public void register(IPedometerListener listener, float maxRateHz) {
+		if (listener == null)
+			return;
+
+		float rate = maxRateHz > 0 && maxRateHz < MAX_RATE_HZ ? maxRateHz
+				: MAX_RATE_HZ;
+
+		// registering again only changes the rate
+		unregister(listener);
+
+		if (listeners.register(listener, new Client((long) (1000 / rate))))
+			clients.incrementAndGet();
+
+		handler.post(deferredDispatch);
+	}
+
+	public void unregister(IPedometerListener listener) {
+		if (listener != null && listeners.unregister(listener))
+			clients.decrementAndGet();
+	}
+
+	/**
+	 * the values of the service changed, cheap enough for the thread of the
+	 * sensors
+	 */
+	public void onChanged() {
+		if (clients.get() == 0 || dispatchScheduled.get())
+			return;
+
+		if (dispatchScheduled.compareAndSet(false, true))
+			handler.post(changeDispatch);
+	}
+
+	private void dispatch() {
+		long now = SystemClock.uptimeMillis();
+		long sequence = sender.prepare();
+
+		// earliest time a skipped client may be sent the values
+		long next = Long.MAX_VALUE;
+
+		int count = listeners.beginBroadcast();
+		try {
+			for (int i = 0; i < count; i++) {
+				Client client = (Client) listeners.getBroadcastCookie(i);
+				if (client.sequence == sequence)
+					continue;
+
+				long due = client.lastSent + client.interval;
+				if (client.lastSent >= 0 && now < due) {
+					next = Math.min(next, due);
+					continue;
+				}
+
+				try {
+					sender.send(listeners.getBroadcastItem(i));
+				} catch (RemoteException e) {
+					// the client died, the list drops it
+				}
+
+				client.lastSent = now;
+				client.sequence = sequence;
+			}
+		} finally {
+			listeners.finishBroadcast();
+		}
+
+		if (next != Long.MAX_VALUE) {
+			handler.removeCallbacks(deferredDispatch);
+			handler.postAtTime(deferredDispatch, next);
+		}
+	}
+
+	/**
+	 * drop all the clients and stop the thread, when the service is
+	 * destroyed
+	 */
+	public void kill() {
+		listeners.kill();
+		clients.set(0);
+		thread.quit();
+	}
+}
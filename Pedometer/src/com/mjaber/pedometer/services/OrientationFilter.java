@@ -0,0 +1,210 @@
+package com.mjaber.pedometer.services;
+
+/**
+ * Complementary filter keeping the orientation of the device as a unit
+ * quaternion. The gyroscope, when there is one, rotates the quaternion with
+ * every sample; the accelerometer and the magnetic field pull it towards the
+ * orientation they measure, with a time constant long enough to smooth out
+ * the bounce of the steps. Without a gyroscope the filter simply smooths the
+ * measured orientation.
+ *
+ * The quaternion rotates device coordinates into North-West-Up world
+ * coordinates, the heading is measured like the azimuth of
+ * SensorManager.getOrientation. Only float math on fields, nothing is
+ * allocated per update and nothing depends on Android.
+ *
+ * @author Mustafa Jaber 'mstfajbr@gmail.com'
+ *
+ */
+public final class OrientationFilter {
+
+	// time constant of the pull towards the measured orientation, in seconds
+	private static final float GYRO_TIME_CONSTANT = 2.0f;
+	private static final float TIME_CONSTANT = 0.5f;
+
+	// gyroscope samples further apart are not integrated, in seconds
+	private static final float MAX_GYRO_INTERVAL = 1.0f;
+
+	// the orientation quaternion, q0 is the scalar part
+	private float q0 = 1.0f, q1 = 0.0f, q2 = 0.0f, q3 = 0.0f;
+
+	// the orientation measured by the last correction
+	private float m0, m1, m2, m3;
+
+	private boolean initialized = false;
+
+	// true once a gyroscope sample was integrated
+	private boolean gyroscope = false;
+
+	/**
+	 * forget the orientation, the next correction takes the measured one
+	 */
+	public void reset() {
+		q0 = 1.0f;
+		q1 = q2 = q3 = 0.0f;
+		initialized = false;
+		gyroscope = false;
+	}
+
+	/**
+	 * rotate by a gyroscope sample, the angular speeds around the device axes
+	 * in rad/s
+	 *
+	 * @param dt
+	 *            the time since the previous gyroscope sample in seconds
+	 */
+	public void rotate(float gx, float gy, float gz, float dt) {
+		if (!initialized || dt <= 0.0f || dt > MAX_GYRO_INTERVAL)
+			return;
+
+		gyroscope = true;
+
+		// q' = q + 0.5 * q * (0, w) * dt
+		float h = 0.5f * dt;
+		float r0 = q0 - h * (q1 * gx + q2 * gy + q3 * gz);
+		float r1 = q1 + h * (q0 * gx + q2 * gz - q3 * gy);
+		float r2 = q2 + h * (q0 * gy - q1 * gz + q3 * gx);
+		float r3 = q3 + h * (q0 * gz + q1 * gy - q2 * gx);
+
+		set(r0, r1, r2, r3);
+	}
+
+	/**
+	 * pull the orientation towards the one measured by the accelerometer and
+	 * the magnetic field, the first correction takes it as it is
+	 *
+	 * @param dt
+	 *            the time since the previous correction in seconds
+	 * @return false when the readings don't define an orientation, e.g. free
+	 *         fall or a missing reading
+	 */
+	public boolean correct(float[] gravity, float[] geomagnetic, float dt) {
+		if (!measure(gravity, geomagnetic))
+			return false;
+
+		if (!initialized) {
+			set(m0, m1, m2, m3);
+			initialized = true;
+			return true;
+		}
+
+		// q and -q are the same orientation, blend with the nearer one
+		if (q0 * m0 + q1 * m1 + q2 * m2 + q3 * m3 < 0.0f) {
+			m0 = -m0;
+			m1 = -m1;
+			m2 = -m2;
+			m3 = -m3;
+		}
+
+		float tau = gyroscope ? GYRO_TIME_CONSTANT : TIME_CONSTANT;
+		float k = dt > 0.0f ? dt / (tau + dt) : 0.0f;
+
+		set(q0 + k * (m0 - q0), q1 + k * (m1 - q1), q2 + k * (m2 - q2), q3
+				+ k * (m3 - q3));
+
+		return true;
+	}
+
+	/**
+	 * the orientation measured by gravity and the magnetic field: up is
+	 * against gravity, west is the magnetic field crossed with up and north
+	 * completes the frame
+	 */
+	private boolean measure(float[] gravity, float[] geomagnetic) {
+		float ax = gravity[0], ay = gravity[1], az = gravity[2];
+		float ex = geomagnetic[0], ey = geomagnetic[1], ez = geomagnetic[2];
+
+		// west = up x field
+		float wx = ay * ez - az * ey;
+		float wy = az * ex - ax * ez;
+		float wz = ax * ey - ay * ex;
+
+		float normW = (float) Math.sqrt(wx * wx + wy * wy + wz * wz);
+		float normA = (float) Math.sqrt(ax * ax + ay * ay + az * az);
+		if (normW < 0.1f || normA < 0.1f) {
+			// device is close to free fall, or close to magnetic north pole
+			return false;
+		}
+
+		float invW = 1.0f / normW;
+		wx *= invW;
+		wy *= invW;
+		wz *= invW;
+
+		float invA = 1.0f / normA;
+		ax *= invA;
+		ay *= invA;
+		az *= invA;
+
+		// north = west x up
+		float nx = wy * az - wz * ay;
+		float ny = wz * ax - wx * az;
+		float nz = wx * ay - wy * ax;
+
+		// the rows of the rotation matrix are north, west and up in device
+		// coordinates, turned into a quaternion the numerically stable way
+		float trace = nx + wy + az;
+		if (trace > 0.0f) {
+			float s = 0.5f / (float) Math.sqrt(trace + 1.0f);
+			m0 = 0.25f / s;
+			m1 = (ay - wz) * s;
+			m2 = (nz - ax) * s;
+			m3 = (wx - ny) * s;
+		} else if (nx > wy && nx > az) {
+			float s = 2.0f * (float) Math.sqrt(1.0f + nx - wy - az);
+			m0 = (ay - wz) / s;
+			m1 = 0.25f * s;
+			m2 = (ny + wx) / s;
+			m3 = (nz + ax) / s;
+		} else if (wy > az) {
+			float s = 2.0f * (float) Math.sqrt(1.0f + wy - nx - az);
+			m0 = (nz - ax) / s;
+			m1 = (ny + wx) / s;
+			m2 = 0.25f * s;
+			m3 = (wz + ay) / s;
+		} else {
+			float s = 2.0f * (float) Math.sqrt(1.0f + az - nx - wy);
+			m0 = (wx - ny) / s;
+			m1 = (nz + ax) / s;
+			m2 = (wz + ay) / s;
+			m3 = 0.25f * s;
+		}
+
+		return true;
+	}
+
+	private void set(float r0, float r1, float r2, float r3) {
+		float inv = 1.0f / (float) Math.sqrt(r0 * r0 + r1 * r1 + r2 * r2 + r3
+				* r3);
+		q0 = r0 * inv;
+		q1 = r1 * inv;
+		q2 = r2 * inv;
+		q3 = r3 * inv;
+	}
+
+	public boolean isInitialized() {
+		return initialized;
+	}
+
+	/**
+	 * @return the azimuth in radians, the angle between magnetic north and
+	 *         the device y axis, clockwise
+	 */
+	public float getHeading() {
+		// north and west component of the device y axis
+		float north = 2.0f * (q1 * q2 - q0 * q3);
+		float west = q0 * q0 - q1 * q1 + q2 * q2 - q3 * q3;
+
+		return (float) Math.atan2(-west, north);
+	}
+
+	/**
+	 * copy the orientation quaternion into q, scalar part first
+	 */
+	public void getQuaternion(float[] q) {
+		q[0] = q0;
+		q[1] = q1;
+		q[2] = q2;
+		q[3] = q3;
+	}
+}
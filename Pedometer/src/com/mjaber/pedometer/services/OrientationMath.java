@@ -0,0 +1,77 @@
+package com.mjaber.pedometer.services;
+
+/**
+ * Plain Java versions of SensorManager.getRotationMatrix and getOrientation,
+ * so the dead reckoning can run outside a device with the same results.
+ *
+ * @author Mustafa Jaber 'mstfajbr@gmail.com'
+ *
+ */
+public final class OrientationMath {
+
+	private OrientationMath() {
+	}
+
+	/**
+	 * Rotation matrix from the device coordinate system to the world
+	 * coordinate system, see SensorManager.getRotationMatrix
+	 *
+	 * @return false when the vectors don't define a rotation, e.g. free fall
+	 *         or a missing reading
+	 */
+	public static boolean getRotationMatrix(float[] R, float[] gravity,
+			float[] geomagnetic) {
+		float Ax = gravity[0];
+		float Ay = gravity[1];
+		float Az = gravity[2];
+		final float Ex = geomagnetic[0];
+		final float Ey = geomagnetic[1];
+		final float Ez = geomagnetic[2];
+
+		float Hx = Ey * Az - Ez * Ay;
+		float Hy = Ez * Ax - Ex * Az;
+		float Hz = Ex * Ay - Ey * Ax;
+		final float normH = (float) Math.sqrt(Hx * Hx + Hy * Hy + Hz * Hz);
+		if (normH < 0.1f) {
+			// device is close to free fall, or close to magnetic north pole
+			return false;
+		}
+
+		final float invH = 1.0f / normH;
+		Hx *= invH;
+		Hy *= invH;
+		Hz *= invH;
+		final float invA = 1.0f / (float) Math.sqrt(Ax * Ax + Ay * Ay + Az
+				* Az);
+		Ax *= invA;
+		Ay *= invA;
+		Az *= invA;
+		final float Mx = Ay * Hz - Az * Hy;
+		final float My = Az * Hx - Ax * Hz;
+		final float Mz = Ax * Hy - Ay * Hx;
+
+		R[0] = Hx;
+		R[1] = Hy;
+		R[2] = Hz;
+		R[3] = Mx;
+		R[4] = My;
+		R[5] = Mz;
+		R[6] = Ax;
+		R[7] = Ay;
+		R[8] = Az;
+
+		return true;
+	}
+
+	/**
+	 * azimuth, pitch and roll in radians of a 3x3 rotation matrix, see
+	 * SensorManager.getOrientation
+	 */
+	public static float[] getOrientation(float[] R, float[] values) {
+		values[0] = (float) Math.atan2(R[1], R[4]);
+		values[1] = (float) Math.asin(-R[7]);
+		values[2] = (float) Math.atan2(-R[6], R[8]);
+
+		return values;
+	}
+}
@@ -1,384 +1,497 @@
-package com.mjaber.pedometer.services;
-
-import com.mjaber.pedometer.Application;
-import com.mjaber.pedometer.logger.DataLogger;
-
-import android.app.Service;
-import android.content.Intent;
-import android.location.Location;
-import android.location.LocationListener;
-import android.location.LocationManager;
-import android.location.LocationProvider;
-import android.os.Bundle;
-import android.os.Handler;
-import android.os.IBinder;
-import android.os.RemoteException;
-import android.util.Log;
-
-/**
- * 
- * @author Mustafa Jaber 'mstfajbr@gmail.com'
- *
- */
-public class PedometerService extends Service implements LocationListener {
-
-	// Debugging Tag
-	private static final String TAG = "PedometerService";
-
-	// location obtained when the service starts
-	private Location location;
-
-	private double latitude;
-	private double longitude;
-	private double distance = 0;
-	private double averageDistance = 1;
-	private double averageSpeed;
-
-	// accuracy of the GPS signal
-	private float GPSAccuracy = 0;
-
-	// to indicate if we got the first GPS reading
-	private boolean receivedFirstGPSReading = false;
-
-	// logs the time of the last position value
-	private long lastOnLocationUpdateTime = 0;
-
-	// A reference to Android's Location Manger
-	protected LocationManager locationManager;
-
-	// indicates whether the current sensor is GPS or ACCELEROMETER
-	private String currentSensor = Application.GPS;
-
-	// a handler to decide on switching between GPS and ACCELEROMETER
-	private Handler handler;
-
-	// to send messages to switch between GPS and Accelerometer
-	private Intent sensorSwitchIntent;
-
-	// Called once when service is started
-	@Override
-	public void onCreate() {
-
-		Log.d(TAG, "Called onCreate");
-
-		super.onCreate();
-		initializeLocation();
-
-		sensorSwitchIntent = new Intent(Application.SENSORSWITCHID);
-	}
-
-	// Called once when service is stopped
-	@Override
-	public void onDestroy() {
-		locationManager.removeUpdates(this);
-	}
-
-	/**
-	 * This method does a setup of the location Manager
-	 */
-	public void initializeLocation() {
-		try {
-			// Acquire a reference to the system Location Manager
-			locationManager = (LocationManager) this
-					.getSystemService(LOCATION_SERVICE);
-
-			// Check if GPS is enabled
-			boolean isGPSEnabled = locationManager
-					.isProviderEnabled(LocationManager.GPS_PROVIDER);
-
-			Log.d(TAG,
-					"GPS provider enabled: " + Boolean.toString(isGPSEnabled));
-
-			// Check if NetworkPosition is enabled
-			boolean isNetworkEnabled = locationManager
-					.isProviderEnabled(LocationManager.NETWORK_PROVIDER);
-			Log.d(TAG,
-					"Network provider enabled: "
-							+ Boolean.toString(isNetworkEnabled));
-
-			if (!isGPSEnabled && !isNetworkEnabled) {
-				// There is no way to get location, nothing else to do here
-			} else {
-				// First try to get location from Network Provider because it's
-				// faster than GPS
-				if (isNetworkEnabled) {
-					getNetworkLocation();
-				}
-
-				// if the user enabled GPS usage on the phone, initialize the
-				// module and get first values
-				if (isGPSEnabled) {
-					getGPSLocation();
-				}
-
-			}// finished the setup
-
-		} catch (Exception e) {
-			Log.e(TAG, "Exception in getLocation" + e.toString());
-		}
-
-	}
-
-	private void getGPSLocation() {
-
-		Log.d(TAG, "start getting GPS locations");
-
-		// Register the listener with the Location Manager to
-		// receive location updates from GPS module
-		locationManager.requestLocationUpdates(LocationManager.GPS_PROVIDER,
-				Application.MIN_TIME_MS, Application.MIN_DISTANCE_IN_MTS, this);
-
-		// Try to get the last Known location from the GPS
-		if (locationManager != null) {
-			
-			location = locationManager
-					.getLastKnownLocation(LocationManager.GPS_PROVIDER);
-			
-			if (location != null) {
-				latitude = location.getLatitude();
-				longitude = location.getLongitude();
-				GPSAccuracy = location.getAccuracy();
-				Log.e(TAG, "last known location from GPS");
-			}
-		}
-	}
-
-	private void getNetworkLocation() {
-		
-		Log.d(TAG, "start getting locations from Network Provider");
-		
-		// Register the listener with the Location Manager to
-		// receive location updates from Network Provider
-		locationManager.requestLocationUpdates(
-				LocationManager.NETWORK_PROVIDER, Application.MIN_TIME_MS,
-				Application.MIN_DISTANCE_IN_MTS, this);
-		
-		// Only if the location retrieves position, this is read
-		if (locationManager != null) {
-			location = locationManager
-					.getLastKnownLocation(LocationManager.NETWORK_PROVIDER);
-			if (location != null) {
-				latitude = location.getLatitude();
-				longitude = location.getLongitude();
-				GPSAccuracy = location.getAccuracy();
-			}
-		}
-		locationManager.removeUpdates(this);
-	}
-
-	/**
-	 * Called when a new location is sensed by the location provider.
-	 */
-	@Override
-	public void onLocationChanged(Location loc) {
-		GPSAccuracy = loc.getAccuracy();
-		// Only if the accuracy is better than 5 meters log records on the
-		// ListOfLocations
-		if (loc.getAccuracy() > 0 && loc.getAccuracy() < 12) {
-
-			switchToGPS();
-
-			distance = DataLogger.getInstance().getCurrDistance();
-
-			Log.d(TAG, "Location Changed and with accuracy");
-			
-			// If is the first time we get a measurement with enough accuracy
-			if (!receivedFirstGPSReading) {
-				updateValues(loc);
-				DataLogger.getInstance().setFirstTime(loc.getTime());
-				receivedFirstGPSReading = true;
-
-				// start the thread to check the update rate of the GPS sensor
-				handler = new Handler();
-				handler.postDelayed(new CheckGPSUpdateTime(), 5000);
-			} else {
-				updateValues(loc);
-			}
-		}
-
-	}
-
-	private void updateValues(Location loc) {
-		// check the distance against previous point
-		distance += haversine(latitude, longitude, loc.getLatitude(),
-				loc.getLongitude());
-		latitude = loc.getLatitude();
-		longitude = loc.getLongitude();
-		location = loc;
-		lastOnLocationUpdateTime = System.currentTimeMillis();
-
-		DataLogger.getInstance().setCurrDistance(distance);
-		DataLogger.getInstance().addLocation(loc);
-	}
-
-	/**
-	 * Haversine function to get distance between two coordinate points
-	 */
-	private double haversine(double lat1, double lon1, double lat2, double lon2) {
-
-		// Constant Earth Radius in meters(Ellipsoidal Quadratic Mean Radius)
-		final double R = 6372800;
-
-		double dLat = Math.toRadians(lat2 - lat1);
-		double dLon = Math.toRadians(lon2 - lon1);
-		lat1 = Math.toRadians(lat1);
-		lat2 = Math.toRadians(lat2);
-		double a = Math.sin(dLat / 2) * Math.sin(dLat / 2) + Math.sin(dLon / 2)
-				* Math.sin(dLon / 2) * Math.cos(lat1) * Math.cos(lat2);
-		double c = 2 * Math.asin(Math.sqrt(a));
-		return R * c;
-	}
-
-	/**
-	 * this inner class keeps checking the signal of the GPS, if there's no
-	 * signal for 5 seconds it switches to the sensors
-	 */
-	private class CheckGPSUpdateTime implements Runnable {
-		@Override
-		public void run() {
-			if ((System.currentTimeMillis() - lastOnLocationUpdateTime) > 5000) {
-				if (currentSensor == Application.GPS) {
-					DataLogger.getInstance().setCurrDistance(distance);
-					switchToAccelerometer();
-				}
-			} else {
-				if (currentSensor == Application.ACCELEROMETER) {
-					switchToGPS();
-					distance = DataLogger.getInstance().getCurrDistance();
-				}
-			}
-
-			handler.postDelayed(this, 5000);
-
-		}
-	}
-
-	@Override
-	public void onProviderDisabled(String arg0) {
-	}
-
-	@Override
-	public void onProviderEnabled(String arg0) {
-	}
-
-	/**
-	 * change the location data source when loosing the signal of the GPS, send
-	 * a flag to the Sensor service to start the sensors
-	 */
-	@Override
-	public void onStatusChanged(String arg0, int arg1, Bundle arg2) {
-
-		Log.d(TAG, "Called onStatusChanged");
-
-		if (arg1 == LocationProvider.OUT_OF_SERVICE
-				|| arg1 == LocationProvider.TEMPORARILY_UNAVAILABLE) {
-
-			if (currentSensor == Application.GPS) {
-				DataLogger.getInstance().setCurrDistance(distance);
-				switchToAccelerometer();
-			}
-
-			Log.d(TAG, "Called onStatusChanged, OUT_OF_SERVICE");
-
-		} else if (arg1 == LocationProvider.AVAILABLE) {
-			if (currentSensor == Application.ACCELEROMETER) {
-
-				distance = DataLogger.getInstance().getCurrDistance();
-
-			}
-
-			Log.d(TAG, "Called onStatusChanged, AVAILABLE");
-		}
-
-	}
-
-	private void switchToGPS() {
-		switchSensor(Application.GPS, Application.STOP);
-	}
-
-	private void switchToAccelerometer() {
-		switchSensor(Application.ACCELEROMETER, Application.STOP);
-	}
-
-	private void switchSensor(String sensor, String action) {
-
-		sensorSwitchIntent.putExtra(Application.SENSOR, action);
-		sendBroadcast(sensorSwitchIntent);
-		currentSensor = sensor;
-	}
-
-	/**
-	 * Returns Average Speed in meters/second
-	 * @return
-	 */
-	private double averageSpeed() {
-		double speed = 0.0;
-		double deltaTimeIn_MS = (double) lastOnLocationUpdateTime
-				- DataLogger.getInstance().getFirstTime();
-		if (distance > 0 && deltaTimeIn_MS > 0) {
-			speed = distance / (deltaTimeIn_MS / 1000);
-		}
-		return speed;
-	}
-
-	private final IPedometerService.Stub mBinder = new IPedometerService.Stub() {
-
-		@Override
-		public double getLatitude() throws RemoteException {
-			if (currentSensor == Application.GPS) {
-				if (location != null) {
-					return latitude;
-				} else {
-					return 0;
-				}
-			} else {
-				return DataLogger.getInstance().getPrevLatitude();
-			}
-		}
-
-		@Override
-		public double getLongitude() throws RemoteException {
-			if (currentSensor == Application.GPS) {
-				if (location != null) {
-					return longitude;
-				} else {
-					return 0;
-				}
-			} else {
-				return DataLogger.getInstance().getPrevLongitude();
-			}
-		}
-
-		@Override
-		public double getDistance() throws RemoteException {
-			averageDistance = distance;
-			return averageDistance;
-		}
-
-		@Override
-		public double getAverageSpeed() throws RemoteException {
-			averageSpeed = averageSpeed();
-			return averageSpeed;
-		}
-
-		@Override
-		public float getAccuracy() throws RemoteException {
-			return GPSAccuracy;
-		}
-
-		@Override
-		public void writeLogFile() throws RemoteException {
-			if (DataLogger.getInstance().getCounter() > 1) {
-				DataLogger.getInstance().writeGPXfile();
-			}
-		}
-
-	};
-
-	@Override
-	public IBinder onBind(Intent intent) {
-		Log.d(TAG, "Called onBind");
-		return mBinder;
-	}
-
-}
+package com.mjaber.pedometer.services;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.mjaber.pedometer.Application;
+import com.mjaber.pedometer.EventBus;
+import com.mjaber.pedometer.logger.DataLogger;
+import com.mjaber.pedometer.logger.RawSensorRecorder;
+
+import android.annotation.TargetApi;
+import android.app.Service;
+import android.content.Intent;
+import android.location.Location;
+import android.location.LocationListener;
+import android.location.LocationManager;
+import android.location.LocationProvider;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * 
+ * @author Mustafa Jaber 'mstfajbr@gmail.com'
+ *
+ */
+public class PedometerService extends Service implements LocationListener {
+
+	// Debugging Tag
+	private static final String TAG = "PedometerService";
+
+	// GPS filtering, distance and the decision when to switch sensors
+	private GpsTracker gpsTracker;
+
+	// decides between GPS and ACCELEROMETER, on the monotonic clock
+	private SensorArbiter arbiter;
+
+	// the GPS update interval, null when it is fixed
+	private GpsIntervalController intervalController;
+
+	// A reference to Android's Location Manger
+	protected LocationManager locationManager;
+
+	// runs the deadline timer of the arbiter and the interval checks after
+	// the steps
+	private Handler handler;
+
+	// true while an interval check is posted and didn't start yet
+	private final AtomicBoolean checkScheduled = new AtomicBoolean();
+
+	// pushes the values to the registered listeners
+	private ListenerDispatcher listeners;
+
+	// the values pushed last, only used on the thread of the dispatcher, a
+	// listener in this process is handed this instance and copies it
+	private final PedometerSnapshot pushedSnapshot = new PedometerSnapshot();
+
+	// the position read for pushedSnapshot, on the same thread
+	private final GpsTracker.Position pushedPosition = new GpsTracker.Position();
+
+	// Called once when service is started
+	@Override
+	public void onCreate() {
+
+		Log.d(TAG, "Called onCreate");
+
+		super.onCreate();
+
+		// the track beyond the memory budget goes to app storage
+		DataLogger.getInstance().setSpillDirectory(
+				new File(getFilesDir(), "track"));
+
+		// a new session, the fused position starts over from the next fix
+		if (Application.POSITION_FUSION)
+			PositionFilter.getInstance().reset();
+
+		gpsTracker = new GpsTracker(sensorSwitch);
+		arbiter = new SensorArbiter(sourceListener);
+		handler = new Handler();
+
+		if (Application.POSITION_FUSION && Application.ADAPTIVE_GPS_INTERVAL)
+			intervalController = new GpsIntervalController(
+					PositionFilter.getInstance());
+
+		listeners = new ListenerDispatcher("PedometerListeners", sender);
+
+		// with the fusion the steps move the position between the fixes
+		if (Application.POSITION_FUSION)
+			EventBus.getInstance().subscribe(EventBus.Step.class, stepUpdate,
+					null);
+
+		initializeLocation();
+	}
+
+	// Called once when service is stopped
+	@Override
+	public void onDestroy() {
+		locationManager.removeUpdates(this);
+		handler.removeCallbacks(deadlineTimer);
+		handler.removeCallbacks(intervalCheck);
+		EventBus.getInstance().unsubscribe(stepUpdate);
+		listeners.kill();
+	}
+
+	/**
+	 * This method does a setup of the location Manager
+	 */
+	public void initializeLocation() {
+		try {
+			// Acquire a reference to the system Location Manager
+			locationManager = (LocationManager) this
+					.getSystemService(LOCATION_SERVICE);
+
+			// Check if GPS is enabled
+			boolean isGPSEnabled = locationManager
+					.isProviderEnabled(LocationManager.GPS_PROVIDER);
+
+			Log.d(TAG,
+					"GPS provider enabled: " + Boolean.toString(isGPSEnabled));
+
+			// Check if NetworkPosition is enabled
+			boolean isNetworkEnabled = locationManager
+					.isProviderEnabled(LocationManager.NETWORK_PROVIDER);
+			Log.d(TAG,
+					"Network provider enabled: "
+							+ Boolean.toString(isNetworkEnabled));
+
+			if (!isGPSEnabled && !isNetworkEnabled) {
+				// There is no way to get location, nothing else to do here
+			} else {
+				// First try to get location from Network Provider because it's
+				// faster than GPS
+				if (isNetworkEnabled) {
+					getNetworkLocation();
+				}
+
+				// if the user enabled GPS usage on the phone, initialize the
+				// module and get first values
+				if (isGPSEnabled) {
+					getGPSLocation();
+				}
+
+			}// finished the setup
+
+		} catch (Exception e) {
+			Log.e(TAG, "Exception in getLocation" + e.toString());
+		}
+
+	}
+
+	private void getGPSLocation() {
+
+		Log.d(TAG, "start getting GPS locations");
+
+		// Register the listener with the Location Manager to
+		// receive location updates from GPS module
+		locationManager.requestLocationUpdates(LocationManager.GPS_PROVIDER,
+				Application.MIN_TIME_MS, Application.MIN_DISTANCE_IN_MTS, this);
+
+		// Try to get the last Known location from the GPS
+		if (locationManager != null) {
+			
+			Location location = locationManager
+					.getLastKnownLocation(LocationManager.GPS_PROVIDER);
+			
+			if (location != null) {
+				gpsTracker.setLastKnownLocation(location.getLatitude(),
+						location.getLongitude(), location.getAccuracy());
+				Log.e(TAG, "last known location from GPS");
+			}
+		}
+	}
+
+	private void getNetworkLocation() {
+		
+		Log.d(TAG, "start getting locations from Network Provider");
+		
+		// Register the listener with the Location Manager to
+		// receive location updates from Network Provider
+		locationManager.requestLocationUpdates(
+				LocationManager.NETWORK_PROVIDER, Application.MIN_TIME_MS,
+				Application.MIN_DISTANCE_IN_MTS, this);
+		
+		// Only if the location retrieves position, this is read
+		if (locationManager != null) {
+			Location location = locationManager
+					.getLastKnownLocation(LocationManager.NETWORK_PROVIDER);
+			if (location != null) {
+				gpsTracker.setLastKnownLocation(location.getLatitude(),
+						location.getLongitude(), location.getAccuracy());
+			}
+		}
+		locationManager.removeUpdates(this);
+	}
+
+	/**
+	 * Called when a new location is sensed by the location provider.
+	 */
+	@Override
+	public void onLocationChanged(Location loc) {
+
+		RawSensorRecorder recorder = RawSensorRecorder.getInstance();
+		if (recorder.isRecording())
+			recorder.recordLocation(getElapsedRealtimeNanos(loc),
+					loc.getLatitude(), loc.getLongitude(), loc.getAccuracy());
+
+		// the decisions run on the monotonic clock, the tracker gets the
+		// wall clock of the logged track and of the steps
+		long uptime = SystemClock.elapsedRealtime();
+		long now = System.currentTimeMillis();
+
+		// the arbiter may make the GPS the source again before the fix is
+		// logged
+		arbiter.onFix(GpsTracker.isAccurate(loc.getAccuracy()), uptime);
+
+		gpsTracker.onLocationChanged(loc.getLatitude(), loc.getLongitude(),
+				loc.getAltitude(), loc.getAccuracy(), loc.getTime(), now);
+
+		if (intervalController != null) {
+			intervalController.onFix(loc.getAccuracy(),
+					loc.hasSpeed() ? loc.getSpeed() : -1);
+			updateInterval(uptime);
+		}
+
+		scheduleDeadline();
+
+		listeners.onChanged();
+	}
+
+	/**
+	 * register the GPS updates again when the interval controller changed
+	 * the interval
+	 *
+	 * @param now
+	 *            SystemClock.elapsedRealtime()
+	 */
+	private void updateInterval(long now) {
+		if (!intervalController.update(now))
+			return;
+
+		long interval = intervalController.getInterval();
+
+		locationManager.requestLocationUpdates(LocationManager.GPS_PROVIDER,
+				interval, Application.MIN_DISTANCE_IN_MTS, this);
+		arbiter.setUpdateInterval(interval);
+		scheduleDeadline();
+
+		Log.d(TAG, "GPS update interval " + interval + " ms");
+	}
+
+	/**
+	 * time of a fix on the clock of the sensor events, older platforms only
+	 * know when the fix was delivered
+	 */
+	@TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR1)
+	private long getElapsedRealtimeNanos(Location loc) {
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1)
+			return loc.getElapsedRealtimeNanos();
+
+		return SystemClock.elapsedRealtime() * 1000000L;
+	}
+
+	/**
+	 * arm the timer for the deadline of the arbiter, it only fires when the
+	 * fixes stop coming in
+	 */
+	private void scheduleDeadline() {
+		handler.removeCallbacks(deadlineTimer);
+
+		long deadline = arbiter.getDeadline();
+		if (deadline >= 0)
+			handler.postDelayed(deadlineTimer,
+					Math.max(0, deadline - SystemClock.elapsedRealtime()));
+	}
+
+	private final Runnable deadlineTimer = new Runnable() {
+		@Override
+		public void run() {
+			arbiter.onDeadline(SystemClock.elapsedRealtime());
+			scheduleDeadline();
+		}
+	};
+
+	/**
+	 * checks the movement again after steps, they may have started or
+	 * turned since the last fix. Posted once for a burst of steps, nothing
+	 * runs while there are neither steps nor fixes.
+	 */
+	private final Runnable intervalCheck = new Runnable() {
+		@Override
+		public void run() {
+			// cleared before checking, steps from now on post a new check
+			// or are seen by this one
+			checkScheduled.set(false);
+
+			long uptime = SystemClock.elapsedRealtime();
+			intervalController.onStep(uptime);
+			updateInterval(uptime);
+		}
+	};
+
+	@Override
+	public void onProviderDisabled(String arg0) {
+	}
+
+	@Override
+	public void onProviderEnabled(String arg0) {
+	}
+
+	/**
+	 * change the location data source when loosing the signal of the GPS, send
+	 * a flag to the Sensor service to start the sensors
+	 */
+	@Override
+	public void onStatusChanged(String arg0, int arg1, Bundle arg2) {
+
+		Log.d(TAG, "Called onStatusChanged");
+
+		if (arg1 == LocationProvider.OUT_OF_SERVICE
+				|| arg1 == LocationProvider.TEMPORARILY_UNAVAILABLE) {
+
+			arbiter.onOutOfService(SystemClock.elapsedRealtime());
+			scheduleDeadline();
+
+			Log.d(TAG, "Called onStatusChanged, OUT_OF_SERVICE");
+
+		} else if (arg1 == LocationProvider.AVAILABLE) {
+			// the GPS is the source again once the fixes are accurate
+			Log.d(TAG, "Called onStatusChanged, AVAILABLE");
+		}
+
+	}
+
+	/**
+	 * the arbiter changed the data source
+	 */
+	private final SensorArbiter.Listener sourceListener = new SensorArbiter.Listener() {
+
+		@Override
+		public void onSourceChanged(String sensor) {
+			gpsTracker.setCurrentSensor(sensor);
+			listeners.onChanged();
+
+			Log.d(TAG, "data source " + sensor);
+		}
+	};
+
+	/**
+	 * tells the listeners and the interval controller about the steps, on
+	 * the sensor thread
+	 */
+	private final EventBus.Subscriber<EventBus.Step> stepUpdate =
+			new EventBus.Subscriber<EventBus.Step>() {
+
+		@Override
+		public void onEvent(EventBus.Step event) {
+			listeners.onChanged();
+
+			if (intervalController != null && !checkScheduled.get()
+					&& checkScheduled.compareAndSet(false, true))
+				handler.post(intervalCheck);
+		}
+	};
+
+	/**
+	 * sends the current values to the listeners
+	 */
+	private final ListenerDispatcher.Sender sender = new ListenerDispatcher.Sender() {
+
+		@Override
+		public long prepare() {
+			fillSnapshot(pushedSnapshot, pushedPosition);
+			return pushedSnapshot.getSequence();
+		}
+
+		@Override
+		public void send(IPedometerListener listener) throws RemoteException {
+			listener.onPedometerChanged(pushedSnapshot);
+		}
+	};
+
+	/**
+	 * take the current values of the tracker, the position and the distance
+	 * of the same update, without holding up the steps or the fixes
+	 */
+	private void fillSnapshot(PedometerSnapshot snapshot,
+			GpsTracker.Position position) {
+		gpsTracker.getPosition(position);
+
+		GpsTracker.Snapshot state = position.getSnapshot();
+		snapshot.set(position.getSequence(), System.currentTimeMillis(),
+				position.getLatitude(), position.getLongitude(),
+				position.getDistance(), state.getAverageSpeed(),
+				state.getAccuracy(), state.getSensor());
+	}
+
+	/**
+	 * tell the Sensor service to start or stop the sensors, and the
+	 * activity where to read the values
+	 */
+	private final GpsTracker.SensorSwitch sensorSwitch = new GpsTracker.SensorSwitch() {
+
+		@Override
+		public void switchSensor(String sensor, String action) {
+			EventBus.getInstance().publish(
+					new EventBus.SourceChanged(sensor, action));
+		}
+	};
+
+	private final IPedometerService.Stub mBinder = new IPedometerService.Stub() {
+
+		@Override
+		public double getLatitude() throws RemoteException {
+			return gpsTracker.getLatitude();
+		}
+
+		@Override
+		public double getLongitude() throws RemoteException {
+			return gpsTracker.getLongitude();
+		}
+
+		@Override
+		public double getDistance() throws RemoteException {
+			return gpsTracker.getDistance();
+		}
+
+		@Override
+		public double getAverageSpeed() throws RemoteException {
+			return gpsTracker.averageSpeed();
+		}
+
+		@Override
+		public float getAccuracy() throws RemoteException {
+			return gpsTracker.getAccuracy();
+		}
+
+		@Override
+		public void writeLogFile() throws RemoteException {
+			DataLogger logger = DataLogger.getInstance();
+
+			// count the locations still in the ring too
+			logger.flush();
+			if (logger.getCounter() > 1) {
+				logger.writeGPXfile();
+			}
+		}
+
+		@Override
+		public void getSnapshot(PedometerSnapshot snapshot)
+				throws RemoteException {
+			// binder threads call this concurrently, each with a holder
+			fillSnapshot(snapshot, new GpsTracker.Position());
+		}
+
+		@Override
+		public void registerListener(IPedometerListener listener,
+				float maxRateHz) throws RemoteException {
+			listeners.register(listener, maxRateHz);
+		}
+
+		@Override
+		public void unregisterListener(IPedometerListener listener)
+				throws RemoteException {
+			listeners.unregister(listener);
+		}
+
+	};
+
+	/**
+	 * Prints the data source, the timeline of its changes and the latencies
+	 * of the event deliveries through dumpsys, "adb shell dumpsys activity
+	 * service com.mjaber.pedometer/.services.PedometerService"
+	 */
+	@Override
+	protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+		writer.println("source " + arbiter.getSource() + ", deadline "
+				+ arbiter.getDeadline());
+
+		for (SensorArbiter.Transition transition : arbiter.getTimeline())
+			writer.println(transition);
+
+		EventBus.getInstance().dump(writer);
+	}
+
+	@Override
+	public IBinder onBind(Intent intent) {
+		Log.d(TAG, "Called onBind");
+		return mBinder;
+	}
+
+}
@@ -0,0 +1,173 @@
+package com.mjaber.pedometer.services;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+import com.mjaber.pedometer.Application;
+
+/**
+ * All the values of {@link IPedometerService} at one point in time, fetched
+ * with a single binder call. The service fills the instance the stub hands
+ * it and the proxy reads the reply back into the instance of the caller, so
+ * a client keeping one instance allocates nothing per refresh.
+ *
+ * The sequence number changes whenever any of the values may have, a client
+ * can skip the refresh while it stays the same. The sensor goes over the
+ * binder as a code and comes back as the constant of Application, so the
+ * callers can still compare it with ==.
+ *
+ * @author Mustafa Jaber 'mstfajbr@gmail.com'
+ *
+ */
+public class PedometerSnapshot implements Parcelable {
+
+	// -1 until the first call filled the instance
+	private long sequence = -1;
+
+	// time the snapshot was taken, System.currentTimeMillis() of the service
+	private long timestamp;
+
+	private double latitude;
+	private double longitude;
+	private double distance;
+	private double averageSpeed;
+	private float accuracy;
+	private String sensor;
+
+	// codes of the sensor in the parcel, NO_SENSOR before the first fill
+	private static final int NO_SENSOR = -1;
+	private static final int GPS = 0;
+	private static final int ACCELEROMETER = 1;
+
+	public static final Parcelable.Creator<PedometerSnapshot> CREATOR = new Parcelable.Creator<PedometerSnapshot>() {
+
+		@Override
+		public PedometerSnapshot createFromParcel(Parcel in) {
+			PedometerSnapshot snapshot = new PedometerSnapshot();
+			snapshot.readFromParcel(in);
+			return snapshot;
+		}
+
+		@Override
+		public PedometerSnapshot[] newArray(int size) {
+			return new PedometerSnapshot[size];
+		}
+	};
+
+	/**
+	 * take the values of the tracker, called by the service
+	 */
+	void set(long sequence, long timestamp, double latitude,
+			double longitude, double distance, double averageSpeed,
+			float accuracy, String sensor) {
+		this.sequence = sequence;
+		this.timestamp = timestamp;
+		this.latitude = latitude;
+		this.longitude = longitude;
+		this.distance = distance;
+		this.averageSpeed = averageSpeed;
+		this.accuracy = accuracy;
+		this.sensor = sensor;
+	}
+
+	/**
+	 * overwrite the values with the ones of another snapshot, a listener in
+	 * the same process gets the instance of the service and has to copy it
+	 */
+	public void copyFrom(PedometerSnapshot other) {
+		sequence = other.sequence;
+		timestamp = other.timestamp;
+		latitude = other.latitude;
+		longitude = other.longitude;
+		distance = other.distance;
+		averageSpeed = other.averageSpeed;
+		accuracy = other.accuracy;
+		sensor = other.sensor;
+	}
+
+	@Override
+	public int describeContents() {
+		return 0;
+	}
+
+	@Override
+	public void writeToParcel(Parcel out, int flags) {
+		out.writeLong(sequence);
+		out.writeLong(timestamp);
+		out.writeDouble(latitude);
+		out.writeDouble(longitude);
+		out.writeDouble(distance);
+		out.writeDouble(averageSpeed);
+		out.writeFloat(accuracy);
+		out.writeInt(toCode(sensor));
+	}
+
+	/**
+	 * overwrite the values with the ones in the parcel, called by the proxy
+	 * for the out parameter
+	 */
+	public void readFromParcel(Parcel in) {
+		sequence = in.readLong();
+		timestamp = in.readLong();
+		latitude = in.readDouble();
+		longitude = in.readDouble();
+		distance = in.readDouble();
+		averageSpeed = in.readDouble();
+		accuracy = in.readFloat();
+		sensor = toSensor(in.readInt());
+	}
+
+	private static int toCode(String sensor) {
+		if (sensor == Application.GPS)
+			return GPS;
+		if (sensor == Application.ACCELEROMETER)
+			return ACCELEROMETER;
+		return NO_SENSOR;
+	}
+
+	private static String toSensor(int code) {
+		switch (code) {
+			case GPS:
+				return Application.GPS;
+			case ACCELEROMETER:
+				return Application.ACCELEROMETER;
+			default:
+				return null;
+		}
+	}
+
+	public long getSequence() {
+		return sequence;
+	}
+
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	public double getLatitude() {
+		return latitude;
+	}
+
+	public double getLongitude() {
+		return longitude;
+	}
+
+	public double getDistance() {
+		return distance;
+	}
+
+	public double getAverageSpeed() {
+		return averageSpeed;
+	}
+
+	public float getAccuracy() {
+		return accuracy;
+	}
+
+	/**
+	 * Application.GPS or Application.ACCELEROMETER
+	 */
+	public String getSensor() {
+		return sensor;
+	}
+}
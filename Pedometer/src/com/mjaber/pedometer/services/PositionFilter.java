@@ -0,0 +1,484 @@
+package com.mjaber.pedometer.services;
+
+import com.mjaber.pedometer.GeoMath;
+
+/**
+ * Kalman filter fusing the steps of the dead reckoning with the GPS fixes
+ * into one position, instead of switching between them. A step moves the
+ * position along the heading and adds the uncertainty of its length and
+ * direction, a fix pulls the position towards it weighted by its accuracy.
+ * The steps measure the distance, the corrections of the fixes only count
+ * when no steps come in, so there is no jump when one source takes over
+ * from the other and the jitter of the fixes doesn't add up while walking.
+ * Standing still adds nothing either: the corrections don't count while the
+ * step detector reports the phone still, nor those of fixes less accurate
+ * than MAX_MEASURED_ACCURACY, which only move the position.
+ *
+ * The state is the position in meters in a local east-north frame anchored
+ * at the first fix, with its 2x2 covariance. Every update is a fixed number
+ * of multiplications on fields, nothing is allocated.
+ *
+ * The steps come in on the sensor thread and the fixes on the GPS thread,
+ * both services share the instance, so the methods are synchronized. The
+ * position and the distance are published after every update through a
+ * sequence lock, the binder threads read them with getPosition() and the
+ * getters of the position without the lock, so they never hold up a step
+ * or a fix.
+ *
+ * @author Mustafa Jaber 'mstfajbr@gmail.com'
+ *
+ */
+public final class PositionFilter {
+
+	private static final PositionFilter instance = new PositionFilter();
+
+	// standard deviation of the step length, relative to the length
+	private static final double STEP_LENGTH_ERROR = 0.1;
+
+	// standard deviation of the heading of a step in radians, 10 degrees
+	private static final double HEADING_ERROR = Math.toRadians(10);
+
+	// variance added to each axis per second, in square meters, for the
+	// walking the steps don't account for
+	private static final double WALK_VARIANCE_RATE = 1.0;
+
+	// Location.getAccuracy() is the radius of 68% confidence, about 1.5
+	// standard deviations of each axis
+	private static final double ACCURACY_TO_SIGMA = 1 / 1.515;
+
+	// squared Mahalanobis distance of a fix beyond which it is taken for an
+	// outlier, 99.9% for two degrees of freedom
+	private static final double OUTLIER_GATE = 13.8;
+
+	// outliers in a row after which the filter starts over from the fix
+	private static final int MAX_OUTLIERS = 3;
+
+	// time without a step in milliseconds after which the fixes measure
+	// the distance
+	private static final long STEP_TIMEOUT_MS = 5000;
+
+	// fixes with a worse accuracy in meters don't add to the distance, the
+	// accuracy the fixes needed before they were fused
+	private static final float MAX_MEASURED_ACCURACY = GpsTracker.MAX_ACCURACY;
+
+	// distance from the anchor in meters after which the frame is moved to
+	// the position, the frame is flat
+	private static final double MAX_ANCHOR_DISTANCE = 10000;
+
+	// converts between the frame and latitude and longitude
+	private final EnuProjector frame = new EnuProjector();
+
+	// false until the first fix, steps only add to the distance until then
+	private boolean initialized = false;
+
+	// position in meters east and north of the anchor
+	private double east;
+	private double north;
+
+	// covariance of the position in square meters
+	private double varianceEast;
+	private double covariance;
+	private double varianceNorth;
+
+	// time of the last update in milliseconds, -1 when unknown
+	private long lastTime = -1;
+
+	// time of the last step in milliseconds, -1 before the first
+	private long lastStepTime = -1;
+
+	// heading of the last step in degrees
+	private double heading = 0.0;
+
+	// true while the step detector reports the phone still
+	private boolean still = false;
+
+	// fixes rejected in a row
+	private int outliers = 0;
+
+	private final GeoMath.KahanSum distance = new GeoMath.KahanSum();
+
+	// length of the steps alone, without the corrections of the fixes
+	private double stepDistance = 0.0;
+
+	// number of updates since the class was loaded, it never goes back
+	private long updates = 0;
+
+	// sequence number of the published state, odd while it is written, the
+	// writers hold the monitor
+	private volatile int sequence = 0;
+
+	// the published state, volatile so a reader can't see any of them
+	// before the sequence number it checks them against
+	private volatile double publishedLatitude;
+	private volatile double publishedLongitude;
+	private volatile double publishedDistance;
+	private volatile long publishedUpdates;
+
+	public static PositionFilter getInstance() {
+		return instance;
+	}
+
+	/**
+	 * forget the position and the distance, e.g. before an offline replay
+	 */
+	public synchronized void reset() {
+		initialized = false;
+		east = 0.0;
+		north = 0.0;
+		lastTime = -1;
+		lastStepTime = -1;
+		heading = 0.0;
+		outliers = 0;
+		distance.set(0.0);
+		stepDistance = 0.0;
+		updates++;
+		publish();
+	}
+
+	/**
+	 * start from a last known location if there is no position yet, its age
+	 * is unknown so no time is accounted for until the next update
+	 */
+	public synchronized void setStart(double latitude, double longitude,
+			float accuracy) {
+		if (initialized || accuracy <= 0)
+			return;
+
+		start(latitude, longitude, accuracy);
+		lastTime = -1;
+		updates++;
+		publish();
+	}
+
+	/**
+	 * the step detector found the phone still or moving again, the
+	 * corrections of the fixes don't add to the distance while it is still
+	 */
+	public synchronized void setStill(boolean still) {
+		this.still = still;
+	}
+
+	/**
+	 * predict the position after a step
+	 *
+	 * @param length
+	 *            the length of the step in meters
+	 * @param heading
+	 *            the direction of the step in degrees, clockwise from north
+	 * @param time
+	 *            the time of the step in milliseconds
+	 */
+	public synchronized void step(double length, double heading, long time) {
+		distance.add(length);
+		stepDistance += length;
+		lastStepTime = time;
+		updates++;
+		this.heading = heading;
+
+		if (!initialized) {
+			lastTime = time;
+			publish();
+			return;
+		}
+
+		addWalkVariance(time);
+
+		double radians = Math.toRadians(heading);
+		double sin = Math.sin(radians);
+		double cos = Math.cos(radians);
+
+		// along and across the step
+		double along = STEP_LENGTH_ERROR * length;
+		double across = HEADING_ERROR * length;
+		along *= along;
+		across *= across;
+
+		varianceEast += along * sin * sin + across * cos * cos;
+		covariance += (along - across) * sin * cos;
+		varianceNorth += along * cos * cos + across * sin * sin;
+
+		moveTo(east + length * sin, north + length * cos, false);
+		publish();
+	}
+
+	/**
+	 * a step of an unknown heading, it adds to the distance and the
+	 * uncertainty of the position in every direction without moving it
+	 *
+	 * @param length
+	 *            the length of the step in meters
+	 * @param time
+	 *            the time of the step in milliseconds
+	 */
+	public synchronized void step(double length, long time) {
+		distance.add(length);
+		stepDistance += length;
+		lastStepTime = time;
+		updates++;
+
+		if (initialized) {
+			addWalkVariance(time);
+			varianceEast += length * length;
+			varianceNorth += length * length;
+		} else {
+			lastTime = time;
+		}
+
+		publish();
+	}
+
+	/**
+	 * correct the position with a fix
+	 *
+	 * @param accuracy
+	 *            the accuracy of the fix in meters, as Location.getAccuracy()
+	 * @param time
+	 *            the time of the fix in milliseconds
+	 * @return false when the fix was rejected as an outlier
+	 */
+	public synchronized boolean fix(double latitude, double longitude,
+			float accuracy, long time) {
+		if (accuracy <= 0)
+			return false;
+
+		updates++;
+		boolean fused = correct(latitude, longitude, accuracy, time);
+		publish();
+
+		return fused;
+	}
+
+	/**
+	 * the update of fix(), without publishing it
+	 */
+	private boolean correct(double latitude, double longitude,
+			float accuracy, long time) {
+		if (!initialized) {
+			start(latitude, longitude, accuracy);
+			lastTime = time;
+			return true;
+		}
+
+		addWalkVariance(time);
+
+		double sigma = accuracy * ACCURACY_TO_SIGMA;
+		double noise = sigma * sigma;
+
+		// innovation and its covariance
+		double dEast = frame.toEast(longitude) - east;
+		double dNorth = frame.toNorth(latitude) - north;
+		double sEast = varianceEast + noise;
+		double sNorth = varianceNorth + noise;
+		double determinant = sEast * sNorth - covariance * covariance;
+
+		double mahalanobis = (dEast * dEast * sNorth - 2 * dEast * dNorth
+				* covariance + dNorth * dNorth * sEast)
+				/ determinant;
+
+		if (mahalanobis > OUTLIER_GATE) {
+			if (++outliers < MAX_OUTLIERS)
+				return false;
+
+			// the position went astray, the fixes agree on another one
+			start(latitude, longitude, accuracy);
+			return true;
+		}
+		outliers = 0;
+
+		// gain = P * S^-1
+		double kEastEast = (varianceEast * sNorth - covariance * covariance)
+				/ determinant;
+		double kEastNorth = (covariance * sEast - varianceEast * covariance)
+				/ determinant;
+		double kNorthEast = (covariance * sNorth - varianceNorth * covariance)
+				/ determinant;
+		double kNorthNorth = (varianceNorth * sEast - covariance * covariance)
+				/ determinant;
+
+		// P = (I - K) * P
+		double newVarianceEast = (1 - kEastEast) * varianceEast - kEastNorth
+				* covariance;
+		double newCovariance = (1 - kEastEast) * covariance - kEastNorth
+				* varianceNorth;
+		double newVarianceNorth = (1 - kNorthNorth) * varianceNorth
+				- kNorthEast * covariance;
+
+		varianceEast = newVarianceEast;
+		covariance = newCovariance;
+		varianceNorth = newVarianceNorth;
+
+		boolean walking = lastStepTime >= 0
+				&& time - lastStepTime <= STEP_TIMEOUT_MS;
+
+		// the jitter of a fix taken standing still is no way walked
+		boolean measure = !walking && !still
+				&& accuracy < MAX_MEASURED_ACCURACY;
+
+		moveTo(east + kEastEast * dEast + kEastNorth * dNorth, north
+				+ kNorthEast * dEast + kNorthNorth * dNorth, measure);
+
+		return true;
+	}
+
+	/**
+	 * put the position at a fix, without adding to the distance
+	 */
+	private void start(double latitude, double longitude, float accuracy) {
+		double sigma = accuracy * ACCURACY_TO_SIGMA;
+
+		frame.anchor(latitude, longitude);
+		east = 0.0;
+		north = 0.0;
+		varianceEast = sigma * sigma;
+		covariance = 0.0;
+		varianceNorth = sigma * sigma;
+		outliers = 0;
+		initialized = true;
+	}
+
+	/**
+	 * the position may have drifted since the last update
+	 */
+	private void addWalkVariance(long time) {
+		if (lastTime >= 0 && time > lastTime) {
+			double variance = WALK_VARIANCE_RATE * (time - lastTime) / 1000.0;
+			varianceEast += variance;
+			varianceNorth += variance;
+		}
+		lastTime = time;
+	}
+
+	/**
+	 * move the position, the frame follows when the position gets too far
+	 * from its anchor
+	 *
+	 * @param measure
+	 *            add the way to the distance
+	 */
+	private void moveTo(double east, double north, boolean measure) {
+		if (measure) {
+			double dEast = east - this.east;
+			double dNorth = north - this.north;
+			distance.add(Math.sqrt(dEast * dEast + dNorth * dNorth));
+		}
+
+		this.east = east;
+		this.north = north;
+
+		if (Math.abs(east) > MAX_ANCHOR_DISTANCE
+				|| Math.abs(north) > MAX_ANCHOR_DISTANCE) {
+			frame.anchor(frame.toLatitude(north), frame.toLongitude(east));
+			this.east = 0.0;
+			this.north = 0.0;
+		}
+	}
+
+	/**
+	 * publish the position and the distance, only called with the monitor
+	 * held
+	 */
+	private void publish() {
+		int next = sequence + 1;
+
+		sequence = next;
+		publishedLatitude = initialized ? frame.toLatitude(north) : 0;
+		publishedLongitude = initialized ? frame.toLongitude(east) : 0;
+		publishedDistance = distance.get();
+		publishedUpdates = updates;
+		sequence = next + 1;
+	}
+
+	/**
+	 * fill the holder with the fused position and the distance, both of the
+	 * same update. Safe to call from any thread without the lock, it
+	 * retries while an update is being published.
+	 *
+	 * @return the number of updates up to the one read
+	 */
+	long getPosition(GpsTracker.Position position) {
+		while (true) {
+			int before = sequence;
+
+			if ((before & 1) == 0) {
+				position.latitude = publishedLatitude;
+				position.longitude = publishedLongitude;
+				position.distance = publishedDistance;
+				long published = publishedUpdates;
+
+				if (sequence == before)
+					return published;
+			}
+
+			Thread.yield();
+		}
+	}
+
+	/**
+	 * number of steps, fixes and resets so far, it changes whenever the
+	 * position or the distance may have, lock-free
+	 */
+	public long getUpdates() {
+		return publishedUpdates;
+	}
+
+	/**
+	 * false until the first fix
+	 */
+	public synchronized boolean hasPosition() {
+		return initialized;
+	}
+
+	/**
+	 * latitude of the fused position, 0 without one, lock-free
+	 */
+	public double getLatitude() {
+		return publishedLatitude;
+	}
+
+	/**
+	 * longitude of the fused position, 0 without one, lock-free
+	 */
+	public double getLongitude() {
+		return publishedLongitude;
+	}
+
+	/**
+	 * length of the fused track in meters, lock-free
+	 */
+	public double getDistance() {
+		return publishedDistance;
+	}
+
+	/**
+	 * length of the steps in meters, the corrections of the fixes left out
+	 */
+	public synchronized double getStepDistance() {
+		return stepDistance;
+	}
+
+	/**
+	 * time of the last step in milliseconds, -1 before the first
+	 */
+	public synchronized long getLastStepTime() {
+		return lastStepTime;
+	}
+
+	/**
+	 * heading of the last step in degrees, clockwise from north
+	 */
+	public synchronized double getHeading() {
+		return heading;
+	}
+
+	/**
+	 * the uncertainty of the position as the accuracy a fix would report,
+	 * 0 without a position
+	 */
+	public synchronized float getAccuracy() {
+		if (!initialized)
+			return 0;
+
+		double sigma = Math.sqrt((varianceEast + varianceNorth) / 2);
+		return (float) (sigma / ACCURACY_TO_SIGMA);
+	}
+}
@@ -0,0 +1,242 @@
+package com.mjaber.pedometer.services;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.mjaber.pedometer.Application;
+
+/**
+ * Decides whether the GPS or the ACCELEROMETER is the data source. It is a
+ * state machine fed with the fixes and the provider status, and it asks for
+ * a single timer: the deadline by which the next accurate fix has to come in
+ * before the sensors take over. The owner arms a one-shot timer for
+ * getDeadline() after every call and calls onDeadline() when it fires, so
+ * nothing runs while the fixes keep coming.
+ *
+ * Going back to the GPS takes RECOVERY_FIXES accurate fixes in a row and at
+ * least MIN_DWELL_MS on the sensors, so a single good fix in a bad area
+ * doesn't make the source flap. Every transition is kept in a timeline with
+ * the time it took since the event that caused it.
+ *
+ * The times are milliseconds of a monotonic clock, SystemClock
+ * .elapsedRealtime() in the service, passed in like in {@link GpsTracker}.
+ *
+ * @author Mustafa Jaber 'mstfajbr@gmail.com'
+ *
+ */
+public class SensorArbiter {
+
+	/**
+	 * Receives the changes of the data source
+	 */
+	public interface Listener {
+
+		/**
+		 * @param sensor
+		 *            the new data source, Application.GPS or
+		 *            Application.ACCELEROMETER
+		 */
+		void onSourceChanged(String sensor);
+	}
+
+	/**
+	 * A change of the data source
+	 */
+	public static final class Transition {
+
+		private final long time;
+		private final String sensor;
+		private final String reason;
+		private final long latency;
+
+		Transition(long time, String sensor, String reason, long latency) {
+			this.time = time;
+			this.sensor = sensor;
+			this.reason = reason;
+			this.latency = latency;
+		}
+
+		public long getTime() {
+			return time;
+		}
+
+		public String getSensor() {
+			return sensor;
+		}
+
+		public String getReason() {
+			return reason;
+		}
+
+		/**
+		 * time in milliseconds from the event that caused the transition,
+		 * the last accurate fix or the first of the recovering ones
+		 */
+		public long getLatency() {
+			return latency;
+		}
+
+		@Override
+		public String toString() {
+			return time + "ms " + sensor + " (" + reason + ", " + latency
+					+ "ms)";
+		}
+	}
+
+	// reasons of the transitions
+	public static final String TIMEOUT = "timeout";
+	public static final String OUT_OF_SERVICE = "out of service";
+	public static final String RECOVERED = "recovered";
+
+	// accurate fixes in a row it takes to go back to the GPS
+	public static final int RECOVERY_FIXES = 3;
+
+	// minimum time on the sensors before going back to the GPS
+	public static final long MIN_DWELL_MS = 10000;
+
+	// number of transitions kept in the timeline
+	private static final int TIMELINE_SIZE = 64;
+
+	private final Listener listener;
+
+	private String source = Application.GPS;
+
+	// time without an accurate fix before switching to the sensors
+	private long timeout = GpsTracker.GPS_TIMEOUT_MS;
+
+	// time the source has to switch by, -1 while there is none
+	private long deadline = -1;
+
+	// time of the last accurate fix and of the last transition, -1 before
+	// the first
+	private long lastFixTime = -1;
+	private long lastTransitionTime = -1;
+
+	// accurate fixes in a row while on the sensors, and the time of the
+	// first of them
+	private int recoveryFixes = 0;
+	private long recoveryStart = -1;
+
+	// the last TIMELINE_SIZE transitions, oldest first once full
+	private final Transition[] timeline = new Transition[TIMELINE_SIZE];
+	private int transitions = 0;
+
+	public SensorArbiter(Listener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * a fix came in
+	 *
+	 * @param accurate
+	 *            the fix passed GpsTracker.isAccurate()
+	 */
+	public void onFix(boolean accurate, long now) {
+		if (!accurate) {
+			recoveryFixes = 0;
+			return;
+		}
+
+		lastFixTime = now;
+
+		if (source == Application.ACCELEROMETER) {
+			if (recoveryFixes++ == 0)
+				recoveryStart = now;
+
+			if (recoveryFixes < RECOVERY_FIXES
+					|| now - lastTransitionTime < MIN_DWELL_MS)
+				return;
+
+			switchTo(Application.GPS, RECOVERED, now - recoveryStart, now);
+		}
+
+		// the GPS stays the source until the next fix is overdue
+		deadline = now + timeout;
+	}
+
+	/**
+	 * the timer armed for getDeadline() fired
+	 */
+	public void onDeadline(long now) {
+		if (deadline < 0 || now < deadline)
+			return;
+
+		deadline = -1;
+
+		if (source == Application.GPS)
+			switchTo(Application.ACCELEROMETER, TIMEOUT, now - lastFixTime,
+					now);
+	}
+
+	/**
+	 * the provider lost the signal, the sensors take over right away
+	 */
+	public void onOutOfService(long now) {
+		if (source != Application.GPS)
+			return;
+
+		deadline = -1;
+		switchTo(Application.ACCELEROMETER, OUT_OF_SERVICE,
+				lastFixTime >= 0 ? now - lastFixTime : 0, now);
+	}
+
+	/**
+	 * the fixes are requested every interval milliseconds now, two of them
+	 * may be missed before switching, an armed deadline moves along
+	 */
+	public void setUpdateInterval(long interval) {
+		timeout = Math.max(GpsTracker.GPS_TIMEOUT_MS, 2 * interval);
+
+		if (deadline >= 0)
+			deadline = lastFixTime + timeout;
+	}
+
+	private void switchTo(String sensor, String reason, long latency,
+			long now) {
+		source = sensor;
+		recoveryFixes = 0;
+		lastTransitionTime = now;
+
+		synchronized (timeline) {
+			timeline[transitions % TIMELINE_SIZE] = new Transition(now,
+					sensor, reason, latency);
+			transitions++;
+		}
+
+		listener.onSourceChanged(sensor);
+	}
+
+	/**
+	 * time of the deadline, -1 when no timer has to be armed
+	 */
+	public long getDeadline() {
+		return deadline;
+	}
+
+	public String getSource() {
+		return source;
+	}
+
+	/**
+	 * the transition made last, null before the first
+	 */
+	public Transition getLastTransition() {
+		synchronized (timeline) {
+			return transitions > 0 ? timeline[(transitions - 1)
+					% TIMELINE_SIZE] : null;
+		}
+	}
+
+	/**
+	 * the last transitions, oldest first, safe to call from any thread
+	 */
+	public List<Transition> getTimeline() {
+		synchronized (timeline) {
+			int count = Math.min(transitions, TIMELINE_SIZE);
+			List<Transition> list = new ArrayList<Transition>(count);
+			for (int i = transitions - count; i < transitions; i++)
+				list.add(timeline[i % TIMELINE_SIZE]);
+			return list;
+		}
+	}
+}
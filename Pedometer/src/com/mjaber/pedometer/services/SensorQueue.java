@@ -0,0 +1,160 @@
+package com.mjaber.pedometer.services;
+
+import android.hardware.Sensor;
+
+/**
+ * Ring of sensor samples handed from the thread delivering the sensor events
+ * to the thread processing them, for exactly one producer and one consumer.
+ * The samples are copied into preallocated columns, and the producer and the
+ * consumer only share the two volatile positions, no lock is taken.
+ *
+ * When the consumer falls behind, samples are shed: above half the capacity
+ * only every MAGNETIC_DECIMATION-th magnetic field sample is kept, the heading
+ * doesn't need more. When the ring is full every new sample is dropped and
+ * counted as an overflow.
+ *
+ * @author Mustafa Jaber 'mstfajbr@gmail.com'
+ *
+ */
+final class SensorQueue {
+
+	// magnetic field samples kept out of this many while shedding
+	private static final int MAGNETIC_DECIMATION = 4;
+
+	/**
+	 * receives the samples taken from the queue
+	 */
+	interface Consumer {
+		void onSample(int type, long timestamp, float[] values, long time);
+	}
+
+	private final int capacity;
+	private final int mask;
+
+	private final int[] types;
+	private final long[] timestamps;
+	private final float[] x;
+	private final float[] y;
+	private final float[] z;
+	private final long[] times;
+
+	// values handed to the consumer, reused for every sample
+	private final float[] values = new float[3];
+
+	// next position to read, only written by the consumer
+	private volatile long head = 0;
+
+	// next position to write, only written by the producer
+	private volatile long tail = 0;
+
+	// counters, only written by the producer
+	private volatile long overflows = 0;
+	private volatile long shed = 0;
+	private volatile int maxDepth = 0;
+
+	// magnetic field samples seen while shedding
+	private int magneticCount = 0;
+
+	/**
+	 * @param capacity
+	 *            the number of samples the queue holds, rounded up to a power
+	 *            of two
+	 */
+	SensorQueue(int capacity) {
+		int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+
+		this.capacity = size;
+		mask = size - 1;
+
+		types = new int[size];
+		timestamps = new long[size];
+		x = new float[size];
+		y = new float[size];
+		z = new float[size];
+		times = new long[size];
+	}
+
+	/**
+	 * copy a sample into the queue, called by the producer
+	 *
+	 * @return false when the sample was shed or dropped
+	 */
+	boolean offer(int type, long timestamp, float[] values, long time) {
+		long position = tail;
+		int depth = (int) (position - head);
+
+		if (depth >= capacity) {
+			overflows++;
+			return false;
+		}
+
+		if (type == Sensor.TYPE_MAGNETIC_FIELD && depth >= capacity / 2
+				&& magneticCount++ % MAGNETIC_DECIMATION != 0) {
+			shed++;
+			return false;
+		}
+
+		int index = (int) position & mask;
+		types[index] = type;
+		timestamps[index] = timestamp;
+		x[index] = values[0];
+		y[index] = values.length > 1 ? values[1] : 0f;
+		z[index] = values.length > 2 ? values[2] : 0f;
+		times[index] = time;
+
+		// publish the sample
+		tail = position + 1;
+
+		if (depth + 1 > maxDepth)
+			maxDepth = depth + 1;
+
+		return true;
+	}
+
+	/**
+	 * hand every queued sample to the consumer in order, called by the
+	 * consumer thread
+	 *
+	 * @return the number of samples handed over
+	 */
+	int drain(Consumer consumer) {
+		long start = head;
+		long end = tail;
+
+		for (long position = start; position < end; position++) {
+			int index = (int) position & mask;
+
+			values[0] = x[index];
+			values[1] = y[index];
+			values[2] = z[index];
+
+			consumer.onSample(types[index], timestamps[index], values,
+					times[index]);
+
+			// free the slot as soon as it was processed
+			head = position + 1;
+		}
+
+		return (int) (end - start);
+	}
+
+	int getCapacity() {
+		return capacity;
+	}
+
+	int getDepth() {
+		return (int) (tail - head);
+	}
+
+	int getMaxDepth() {
+		return maxDepth;
+	}
+
+	long getOverflows() {
+		return overflows;
+	}
+
+	long getShed() {
+		return shed;
+	}
+}